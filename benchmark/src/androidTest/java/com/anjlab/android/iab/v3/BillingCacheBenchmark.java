@@ -0,0 +1,239 @@
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Loading and writing a purchase cache of a given size. Writes go through the journal,
+ * including its fsync, so results depend on the device's storage.
+ * <p>
+ * The {@code legacy*} cases do the same with the delimited string that versions up to v2_6
+ * kept in SharedPreferences, as the baseline the journal is compared against.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BillingCacheBenchmark
+{
+    private static final String CACHE_KEY = ".products.cache.v2_6";
+    private static final String ENTRY_DELIMITER = "#####";
+    private static final String LINE_DELIMITER = ">>>>>";
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private Context context;
+    private File directory;
+    private SharedPreferences preferences;
+    private BillingStorage storage;
+
+    @Before
+    public void setup() throws Exception
+    {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        directory = File.createTempFile("billing", ".cache", context.getCacheDir());
+        directory.delete();
+        directory.mkdirs();
+        preferences = context.getSharedPreferences("iabv3.benchmark", Context.MODE_PRIVATE);
+        storage = new SharedPreferencesBillingStorage(preferences, directory);
+    }
+
+    @After
+    public void cleanup()
+    {
+        preferences.edit().clear().commit();
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void load10()
+    {
+        load(10);
+    }
+
+    @Test
+    public void load1k()
+    {
+        load(1000);
+    }
+
+    @Test
+    public void load100k()
+    {
+        load(100000);
+    }
+
+    @Test
+    public void legacyLoad10()
+    {
+        legacyLoad(10);
+    }
+
+    @Test
+    public void legacyLoad1k()
+    {
+        legacyLoad(1000);
+    }
+
+    @Test
+    public void legacyLoad100k()
+    {
+        legacyLoad(100000);
+    }
+
+    /**
+     * Replaces one purchase: a snapshot copy and a single journal append.
+     */
+    @Test
+    public void flushChange1k()
+    {
+        BillingCache cache = populate(1000);
+        int write = 0;
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            write++;
+            cache.edit().put("product.0", purchaseJson(write), "c2lnbmF0dXJl" + write).commit();
+        }
+    }
+
+    /**
+     * Replaces one purchase the way versions up to v2_6 did: the whole cache is joined into one
+     * string and committed to SharedPreferences, followed by a version write.
+     */
+    @Test
+    public void legacyFlushChange1k()
+    {
+        HashMap<String, CachedPurchase> purchases = purchases(1000);
+        int write = 0;
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            write++;
+            purchases.put("product.0", new CachedPurchase(purchaseJson(write), "c2lnbmF0dXJl" + write));
+            storage.putString(legacyCacheKey(), encodeLegacy(purchases));
+            storage.putString(legacyCacheKey() + ".version", Long.toString(System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Writes the whole cache out, as compaction and migration do.
+     */
+    @Test
+    public void flushAll1k()
+    {
+        HashMap<String, CachedPurchase> purchases = purchases(1000);
+        BillingJournal journal = BillingJournal.forFile(new File(directory, "iabv3.rewrite.journal"));
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            journal.rewrite(purchases);
+        }
+    }
+
+    /**
+     * Replays the journal into a new cache, as on every app start.
+     */
+    private void load(int size)
+    {
+        populate(size);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            new BillingCache(context, storage, CACHE_KEY);
+        }
+    }
+
+    /**
+     * Reads and decodes the SharedPreferences string, parsing every purchase up front, as
+     * versions up to v2_6 did on every app start.
+     */
+    private void legacyLoad(int size)
+    {
+        storage.putString(legacyCacheKey(), encodeLegacy(purchases(size)));
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            HashMap<String, PurchaseInfo> data = new HashMap<>();
+            String[] entries = storage.getString(legacyCacheKey(), "").split(Pattern.quote(ENTRY_DELIMITER));
+            for (String entry : entries)
+            {
+                if (!TextUtils.isEmpty(entry))
+                {
+                    String[] parts = entry.split(Pattern.quote(LINE_DELIMITER));
+                    if (parts.length > 2)
+                    {
+                        data.put(parts[0], new PurchaseInfo(parts[1], parts[2]));
+                    }
+                    else if (parts.length > 1)
+                    {
+                        data.put(parts[0], new PurchaseInfo(parts[1], null));
+                    }
+                }
+            }
+        }
+    }
+
+    private String legacyCacheKey()
+    {
+        return context.getPackageName() + "_preferences" + CACHE_KEY;
+    }
+
+    private static String encodeLegacy(Map<String, CachedPurchase> purchases)
+    {
+        ArrayList<String> output = new ArrayList<>(purchases.size());
+        for (Map.Entry<String, CachedPurchase> entry : purchases.entrySet())
+        {
+            output.add(entry.getKey() + LINE_DELIMITER + entry.getValue().responseData + LINE_DELIMITER +
+                    entry.getValue().signature);
+        }
+        return TextUtils.join(ENTRY_DELIMITER, output);
+    }
+
+    private BillingCache populate(int size)
+    {
+        BillingJournal.forFile(new File(directory, "iabv3" + CACHE_KEY + ".journal")).rewrite(purchases(size));
+        return new BillingCache(context, storage, CACHE_KEY);
+    }
+
+    private static HashMap<String, CachedPurchase> purchases(int size)
+    {
+        HashMap<String, CachedPurchase> purchases = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++)
+        {
+            purchases.put("product." + i, new CachedPurchase(purchaseJson(i), "c2lnbmF0dXJl" + i));
+        }
+        return purchases;
+    }
+
+    private static String purchaseJson(int i)
+    {
+        return "{\"orderId\":\"GPA.1234-5678-9012-" + i + "\",\"packageName\":\"com.example\"," +
+                "\"productId\":\"product." + i + "\",\"purchaseTime\":1563441231403," +
+                "\"purchaseState\":0,\"purchaseToken\":\"token-" + i + "\"}";
+    }
+}
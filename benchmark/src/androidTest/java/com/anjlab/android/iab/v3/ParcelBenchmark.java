@@ -0,0 +1,76 @@
+package com.anjlab.android.iab.v3;
+
+import android.os.Parcel;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.anjlab.android.iab.v3.util.ResourcesUtil;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Round-trips through a real {@link Parcel}, as when details are passed between components.
+ * {@link #transactionDetailsRoundTripReparsing()} is the baseline from before the parsed
+ * purchase data was parcelled.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ParcelBenchmark
+{
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void transactionDetailsRoundTrip()
+    {
+        TransactionDetails details = new TransactionDetails(
+                new PurchaseInfo(ResourcesUtil.loadFile("transaction_details.json"), "signature"));
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            Parcel parcel = Parcel.obtain();
+            details.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            TransactionDetails.CREATOR.createFromParcel(parcel);
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * What a round-trip did before: the raw strings were parcelled and parsed again on read.
+     */
+    @Test
+    public void transactionDetailsRoundTripReparsing()
+    {
+        TransactionDetails details = new TransactionDetails(
+                new PurchaseInfo(ResourcesUtil.loadFile("transaction_details.json"), "signature"));
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            Parcel parcel = Parcel.obtain();
+            parcel.writeString(details.purchaseInfo.responseData);
+            parcel.writeString(details.purchaseInfo.signature);
+            parcel.setDataPosition(0);
+            new TransactionDetails(new PurchaseInfo(parcel.readString(), parcel.readString()));
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void skuDetailsRoundTrip()
+    {
+        SkuDetails details = SkuDetailsBenchmark.newSubscription();
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            Parcel parcel = Parcel.obtain();
+            details.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            SkuDetails.CREATOR.createFromParcel(parcel);
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.anjlab.android.iab.v3;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.anjlab.android.iab.v3.util.ResourcesUtil;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Date;
+
+/**
+ * Parsing purchase and purchase history JSON with the platform's JsonReader.
+ * {@link #parsePurchaseInfoWithJSONObject()} is the baseline, the JSONObject tree the
+ * purchase data used to be read from.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PurchaseInfoBenchmark
+{
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void parsePurchaseInfo()
+    {
+        parse("purchase_info.json");
+    }
+
+    @Test
+    public void parsePurchaseInfoWithJSONObject() throws JSONException
+    {
+        String purchaseJson = ResourcesUtil.loadFile("purchase_info.json");
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            JSONObject json = new JSONObject(purchaseJson);
+            PurchaseData data = new PurchaseData();
+            data.orderId = json.optString(Constants.RESPONSE_ORDER_ID);
+            data.packageName = json.optString(Constants.RESPONSE_PACKAGE_NAME);
+            data.productId = json.optString(Constants.RESPONSE_PRODUCT_ID);
+            long purchaseTimeMillis = json.optLong(Constants.RESPONSE_PURCHASE_TIME, 0);
+            data.purchaseTime = purchaseTimeMillis != 0 ? new Date(purchaseTimeMillis) : null;
+            data.purchaseState = PurchaseState.values()[json.optInt(Constants.RESPONSE_PURCHASE_STATE, 1)];
+            data.developerPayload = json.optString(Constants.RESPONSE_DEVELOPER_PAYLOAD);
+            data.purchaseToken = json.getString(Constants.RESPONSE_PURCHASE_TOKEN);
+            data.autoRenewing = json.optBoolean(Constants.RESPONSE_AUTO_RENEWING);
+        }
+    }
+
+    @Test
+    public void parseTransactionDetails()
+    {
+        parse("transaction_details.json");
+    }
+
+    @Test
+    public void parseHistoryRecord() throws JSONException
+    {
+        String historyJson = ResourcesUtil.loadFile("purchase_history_response.json");
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            new BillingHistoryRecord(historyJson, "signature");
+        }
+    }
+
+    private void parse(String resource)
+    {
+        String purchaseJson = ResourcesUtil.loadFile(resource);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            new PurchaseInfo(purchaseJson, "signature");
+        }
+    }
+}
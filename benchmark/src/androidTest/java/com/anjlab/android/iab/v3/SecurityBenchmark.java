@@ -0,0 +1,116 @@
+package com.anjlab.android.iab.v3;
+
+import android.util.Base64;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.anjlab.android.iab.v3.util.ResourcesUtil;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+
+/**
+ * Signature verification of a purchase signed with a 2048-bit key, the size Play uses for
+ * license keys. {@link #verifyPurchaseUncached()} is the baseline the cached key, the reused
+ * Signature and the verdict cache are compared against.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SecurityBenchmark
+{
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private String licenseKey;
+    private PublicKey publicKey;
+    private String purchaseJson;
+    private String signature;
+
+    @Before
+    public void setup() throws Exception
+    {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        licenseKey = Base64.encodeToString(keyPair.getPublic().getEncoded(), Base64.NO_WRAP);
+        publicKey = Security.generatePublicKey(licenseKey);
+        purchaseJson = ResourcesUtil.loadFile("purchase_info.json");
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(purchaseJson.getBytes("UTF-8"));
+        signature = Base64.encodeToString(signer.sign(), Base64.NO_WRAP);
+    }
+
+    /**
+     * The path taken for every purchase: license key lookup plus verification.
+     */
+    @Test
+    public void verifyPurchase()
+    {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            Security.verifyPurchase("product", licenseKey, purchaseJson, signature);
+        }
+    }
+
+    /**
+     * What verifyPurchase() did before the decoded key and the Signature were cached.
+     */
+    @Test
+    public void verifyPurchaseUncached() throws Exception
+    {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            PublicKey key = Security.generatePublicKey(licenseKey);
+            Signature verifier = Signature.getInstance("SHA1withRSA");
+            verifier.initVerify(key);
+            verifier.update(purchaseJson.getBytes());
+            verifier.verify(Base64.decode(signature, Base64.DEFAULT));
+        }
+    }
+
+    /**
+     * Checking a transaction that was verified before: a digest of its inputs and a lookup.
+     */
+    @Test
+    public void verdictCacheHit()
+    {
+        VerificationCache verdicts = new VerificationCache(64);
+        verdicts.put(VerificationCache.keyFor(purchaseJson, signature, licenseKey, null), true);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            verdicts.get(VerificationCache.keyFor(purchaseJson, signature, licenseKey, null));
+        }
+    }
+
+    @Test
+    public void verify()
+    {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            Security.verify(publicKey, purchaseJson, signature);
+        }
+    }
+
+    @Test
+    public void generatePublicKey()
+    {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            Security.generatePublicKey(licenseKey);
+        }
+    }
+}
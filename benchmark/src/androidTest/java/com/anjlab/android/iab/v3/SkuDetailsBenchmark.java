@@ -0,0 +1,88 @@
+package com.anjlab.android.iab.v3;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.anjlab.android.iab.v3.util.ResourcesUtil;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class SkuDetailsBenchmark
+{
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    /**
+     * Construction alone, from an already parsed object.
+     */
+    @Test
+    public void construct() throws JSONException
+    {
+        JSONObject source = new JSONObject(ResourcesUtil.loadFile("sku_subscription_introductory.json"));
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            new SkuDetails(source);
+        }
+    }
+
+    @Test
+    public void parseAndConstructInApp() throws JSONException
+    {
+        parseAndConstruct("sku_in_app.json");
+    }
+
+    @Test
+    public void parseAndConstructSubscription() throws JSONException
+    {
+        parseAndConstruct("sku_subscription_introductory.json");
+    }
+
+    /**
+     * Details built from Play's product details, whose JSON is generated from the fields.
+     */
+    @Test
+    public void constructFromFields()
+    {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            newSubscription();
+        }
+    }
+
+    static SkuDetails newSubscription()
+    {
+        SkuDetails.Values values = new SkuDetails.Values();
+        values.productId = "subscription";
+        values.title = "Title";
+        values.description = "Description";
+        values.isSubscription = true;
+        values.currency = "USD";
+        values.priceLong = 4990000;
+        values.priceText = "$4.99";
+        values.subscriptionPeriod = "P1M";
+        values.subscriptionFreeTrialPeriod = "P1W";
+        values.introductoryPriceLong = 990000;
+        values.introductoryPriceText = "$0.99";
+        values.introductoryPricePeriod = "P1M";
+        values.introductoryPriceCycles = 3;
+        return new SkuDetails(values);
+    }
+
+    private void parseAndConstruct(String resource) throws JSONException
+    {
+        String json = ResourcesUtil.loadFile(resource);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            new SkuDetails(new JSONObject(json));
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.anjlab.android.iab.v3.util.ResourcesUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class BillingCacheTest
+{
+    private Context context;
+    private SharedPreferences preferences;
+    private File directory;
+    private String purchaseJson;
+
+    @Before
+    public void setup() throws Exception
+    {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        preferences = context.getSharedPreferences("iabv3.test", Context.MODE_PRIVATE);
+        directory = File.createTempFile("billing", ".cache");
+        directory.delete();
+        directory.mkdirs();
+        purchaseJson = ResourcesUtil.loadFile("purchase_info.json");
+    }
+
+    @After
+    public void cleanup()
+    {
+        preferences.edit().clear().commit();
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testSeesWritesOfCacheSharingTheJournal()
+    {
+        BillingCache first = newCache();
+        BillingCache second = newCache();
+
+        first.put("product", purchaseJson, "signature");
+        assertTrue(second.includesProduct("product"));
+
+        second.remove("product");
+        assertFalse(first.includesProduct("product"));
+        assertNull(first.getDetails("product"));
+    }
+
+    @Test
+    public void testLoadsInBackground()
+    {
+        newCache().put("product", purchaseJson, "signature");
+        BillingCache cache = new BillingCache(context, new SharedPreferencesBillingStorage(preferences, directory),
+                ".products.cache.v2_6", Executors.newSingleThreadExecutor());
+
+        assertTrue(cache.awaitLoaded(5, TimeUnit.SECONDS));
+        assertTrue(cache.isLoaded());
+        assertTrue(cache.includesProduct("product"));
+    }
+
+    @Test
+    public void testParsesCachedPurchaseOnce()
+    {
+        newCache().put("product", purchaseJson, "signature");
+        BillingCache cache = newCache();
+
+        PurchaseInfo details = cache.getDetails("product");
+
+        assertEquals(purchaseJson, details.responseData);
+        assertTrue(details == cache.getDetails("product"));
+    }
+
+    @Test
+    public void testServesSameTransactionDetailsUntilChanged()
+    {
+        BillingCache cache = newCache();
+        cache.put("product", purchaseJson, "signature");
+
+        TransactionDetails details = cache.getTransactionDetails("product");
+        assertTrue(details == cache.getTransactionDetails("product"));
+
+        cache.edit().put("product", purchaseJson, "other signature").commit();
+        TransactionDetails changed = cache.getTransactionDetails("product");
+        assertFalse(details == changed);
+        assertEquals("other signature", changed.purchaseInfo.signature);
+        assertNull(cache.getTransactionDetails("missing"));
+    }
+
+    @Test
+    public void testKeepsPurchaseParsedBeforeCaching()
+    {
+        BillingCache cache = newCache();
+        PurchaseInfo parsed = new PurchaseInfo(purchaseJson, "signature");
+
+        cache.edit().put("product", new CachedPurchase(parsed)).commit();
+
+        assertTrue(parsed == cache.getDetails("product"));
+        assertEquals(purchaseJson, newCache().getDetails("product").responseData);
+    }
+
+    @Test
+    public void testReplaceAllWritesOnlyDifferences()
+    {
+        BillingCache cache = newCache();
+        cache.put("kept", purchaseJson, "signature");
+        cache.put("removed", purchaseJson, "signature");
+        HashMap<String, CachedPurchase> purchases = new HashMap<>();
+        purchases.put("kept", new CachedPurchase(purchaseJson, "signature"));
+        purchases.put("added", new CachedPurchase(purchaseJson, "signature"));
+
+        assertTrue(cache.replaceAll(purchases));
+        long length = journalFile().length();
+        assertFalse(cache.replaceAll(purchases));
+
+        assertEquals(length, journalFile().length());
+        assertTrue(newCache().includesProduct("added"));
+        assertFalse(newCache().includesProduct("removed"));
+    }
+
+    @Test
+    public void testEditorAppliesAllChangesAtOnce()
+    {
+        BillingCache cache = newCache();
+        cache.put("removed", purchaseJson, "signature");
+
+        boolean changed = cache.edit()
+                .put("first", purchaseJson, "signature")
+                .put("second", purchaseJson, null)
+                .remove("removed")
+                .commit();
+
+        assertTrue(changed);
+        assertEquals(2, cache.getContents().size());
+        assertEquals(2, newCache().getContents().size());
+        assertFalse(cache.edit().remove("removed").put("first", purchaseJson, "signature").commit());
+    }
+
+    @Test
+    public void testReadersSeeConsistentSnapshotsWhileWriting() throws Exception
+    {
+        final BillingCache cache = newCache();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread reader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (writing.get())
+                    {
+                        List<String> contents = cache.getContents();
+                        // the writer never holds more than two products, so neither should any snapshot
+                        assertTrue(contents.size() <= 2);
+                        cache.toString();
+                    }
+                }
+                catch (Throwable e)
+                {
+                    failure.set(e);
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 200; i++)
+        {
+            cache.clear();
+            cache.put("first." + i, purchaseJson, "signature");
+            cache.put("second." + i, purchaseJson, "signature");
+        }
+        writing.set(false);
+        reader.join();
+
+        assertNull(failure.get());
+        assertEquals(2, cache.getContents().size());
+    }
+
+    @Test
+    public void testSetsUnreadableJournalAside() throws Exception
+    {
+        FileOutputStream stream = new FileOutputStream(journalFile());
+        stream.write(new byte[]{1, 2, 3, 4, 5, 6});
+        stream.close();
+
+        BillingCache cache = newCache();
+
+        assertEquals(0, cache.getContents().size());
+        assertEquals(6, new File(directory, journalFile().getName() + ".unreadable").length());
+
+        cache.put("product", purchaseJson, "signature");
+        assertTrue(newCache().includesProduct("product"));
+    }
+
+    @Test
+    public void testKeepsSnapshotWhenJournalWriteFails()
+    {
+        BillingCache cache = newCache();
+        cache.put("first", purchaseJson, "signature");
+        // a directory in place of the journal makes every append fail
+        journalFile().delete();
+        journalFile().mkdir();
+
+        assertFalse(cache.edit().put("second", purchaseJson, "signature").commit());
+        cache.remove("first");
+
+        assertEquals(1, cache.getContents().size());
+        assertTrue(cache.includesProduct("first"));
+    }
+
+    @Test
+    public void testStaysInMemoryWhenJournalCannotBeCreated()
+    {
+        // a directory in place of the temporary file makes the initial rewrite fail
+        File temp = new File(directory, journalFile().getName() + ".tmp");
+        temp.mkdir();
+
+        BillingCache cache = newCache();
+        cache.put("product", purchaseJson, "signature");
+
+        assertTrue(cache.includesProduct("product"));
+        assertFalse(journalFile().exists());
+        temp.delete();
+    }
+
+    @Test
+    public void testRemovesEntriesThatFailedTheScan()
+    {
+        BillingCache cache = newCache();
+        cache.put("tampered", purchaseJson, "signature");
+        cache.put("valid", purchaseJson, "signature");
+        HashMap<String, CachedPurchase> failed = new HashMap<>();
+        failed.put("tampered", cache.getSnapshot().get("tampered"));
+
+        List<String> removed = cache.removeUnlessChanged(failed);
+
+        assertEquals(1, removed.size());
+        assertEquals("tampered", removed.get(0));
+        assertFalse(cache.includesProduct("tampered"));
+        assertTrue(cache.includesProduct("valid"));
+        assertFalse(newCache().includesProduct("tampered"));
+    }
+
+    @Test
+    public void testKeepsEntriesChangedDuringTheScan()
+    {
+        BillingCache cache = newCache();
+        cache.put("product", purchaseJson, "signature");
+        HashMap<String, CachedPurchase> failed = new HashMap<>(cache.getSnapshot());
+        cache.edit().put("product", purchaseJson, "new signature").commit();
+
+        assertTrue(cache.removeUnlessChanged(failed).isEmpty());
+        assertEquals("new signature", cache.getDetails("product").signature);
+    }
+
+    @Test
+    public void testReportsNothingRemovedWhenRemovalFails()
+    {
+        BillingCache cache = newCache();
+        cache.put("product", purchaseJson, "signature");
+        HashMap<String, CachedPurchase> failed = new HashMap<>(cache.getSnapshot());
+        journalFile().delete();
+        journalFile().mkdir();
+
+        assertTrue(cache.removeUnlessChanged(failed).isEmpty());
+        assertTrue(cache.includesProduct("product"));
+    }
+
+    @Test
+    public void testMigratesCacheFromPreferences()
+    {
+        seedLegacyCache();
+
+        BillingCache cache = newCache();
+
+        assertEquals("signature", cache.getDetails("signed").signature);
+        assertNull(cache.getDetails("unsigned").signature);
+        assertEquals(purchaseJson, cache.getDetails("unsigned").responseData);
+        assertFalse(preferences.contains(legacyCacheKey()));
+        assertFalse(preferences.contains(legacyCacheKey() + ".version"));
+        // the entries now come from the journal alone
+        assertEquals(2, newCache().getContents().size());
+    }
+
+    @Test
+    public void testKeepsLegacyCacheWhenJournalCannotBeWritten()
+    {
+        seedLegacyCache();
+        File temp = new File(directory, journalFile().getName() + ".tmp");
+        temp.mkdir();
+
+        BillingCache cache = newCache();
+
+        assertEquals(2, cache.getContents().size());
+        assertTrue(preferences.contains(legacyCacheKey()));
+        assertTrue(preferences.contains(legacyCacheKey() + ".version"));
+        temp.delete();
+        assertEquals(2, newCache().getContents().size());
+        assertFalse(preferences.contains(legacyCacheKey()));
+    }
+
+    private void seedLegacyCache()
+    {
+        String cache = "#####signed>>>>>" + purchaseJson + ">>>>>signature" + "#####unsigned>>>>>" + purchaseJson;
+        preferences.edit()
+                .putString(legacyCacheKey(), cache)
+                .putString(legacyCacheKey() + ".version", "1")
+                .commit();
+    }
+
+    private String legacyCacheKey()
+    {
+        return context.getPackageName() + "_preferences.products.cache.v2_6";
+    }
+
+    private File journalFile()
+    {
+        return new File(directory, "iabv3.products.cache.v2_6.journal");
+    }
+
+    private BillingCache newCache()
+    {
+        return new BillingCache(context, new SharedPreferencesBillingStorage(preferences, directory), ".products.cache.v2_6");
+    }
+}
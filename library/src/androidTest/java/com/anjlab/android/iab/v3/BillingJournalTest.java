@@ -0,0 +1,172 @@
+package com.anjlab.android.iab.v3;
+
+import com.anjlab.android.iab.v3.util.ResourcesUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class BillingJournalTest
+{
+    private File file;
+    private String purchaseJson;
+
+    @Before
+    public void setup() throws Exception
+    {
+        file = File.createTempFile("billing", ".journal");
+        file.delete();
+        purchaseJson = ResourcesUtil.loadFile("purchase_info.json");
+    }
+
+    @After
+    public void cleanup()
+    {
+        file.delete();
+    }
+
+    @Test
+    public void testReplaysAppendedRecords() throws Exception
+    {
+        BillingJournal journal = BillingJournal.forFile(file);
+        journal.rewrite(new HashMap<String, CachedPurchase>());
+        journal.appendPut("first", purchaseJson, "signature");
+        journal.appendPut("second", purchaseJson, null);
+        journal.appendRemove("first");
+
+        Map<String, String> replayed = replay(journal);
+
+        assertEquals(1, replayed.size());
+        assertTrue(replayed.containsKey("second"));
+        assertNull(replayed.get("second"));
+    }
+
+    @Test
+    public void testClearDropsEarlierRecords() throws Exception
+    {
+        BillingJournal journal = BillingJournal.forFile(file);
+        journal.rewrite(new HashMap<String, CachedPurchase>());
+        journal.appendPut("first", purchaseJson, "signature");
+        journal.appendClear();
+        journal.appendPut("second", purchaseJson, "signature");
+
+        Map<String, String> replayed = replay(journal);
+
+        assertEquals(1, replayed.size());
+        assertEquals("signature", replayed.get("second"));
+    }
+
+    @Test
+    public void testDropsIncompleteTrailingRecord() throws Exception
+    {
+        BillingJournal journal = BillingJournal.forFile(file);
+        journal.rewrite(new HashMap<String, CachedPurchase>());
+        journal.appendPut("first", purchaseJson, "signature");
+        long validLength = file.length();
+        journal.appendPut("second", purchaseJson, "signature");
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 3);
+        raf.close();
+
+        Map<String, String> replayed = replay(journal);
+
+        assertEquals(1, replayed.size());
+        assertTrue(replayed.containsKey("first"));
+        assertFalse(replayed.containsKey("second"));
+        assertEquals(validLength, file.length());
+    }
+
+    @Test
+    public void testDropsIncompleteBatchAsAWhole() throws Exception
+    {
+        BillingJournal journal = BillingJournal.forFile(file);
+        journal.rewrite(new HashMap<String, CachedPurchase>());
+        journal.appendPut("first", purchaseJson, "signature");
+        journal.appendBatch(Arrays.asList(
+                BillingJournal.Mutation.remove("first"),
+                BillingJournal.Mutation.put("second", purchaseJson, "signature")));
+
+        assertEquals(1, replay(journal).size());
+        assertTrue(replay(journal).containsKey("second"));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 3);
+        raf.close();
+
+        Map<String, String> replayed = replay(journal);
+
+        assertEquals(1, replayed.size());
+        assertTrue(replayed.containsKey("first"));
+    }
+
+    @Test
+    public void testGenerationAdvancesOnEveryChange() throws Exception
+    {
+        BillingJournal journal = BillingJournal.forFile(file);
+        journal.rewrite(new HashMap<String, CachedPurchase>());
+        long generation = journal.getGeneration();
+
+        assertEquals(generation + 1, journal.appendPut("first", purchaseJson, "signature"));
+        assertEquals(generation + 2, journal.appendRemove("first"));
+        assertEquals(generation + 3, journal.appendClear());
+        assertEquals(generation + 3, journal.getGeneration());
+    }
+
+    @Test
+    public void testAppendStartsMissingFileWithHeader() throws Exception
+    {
+        BillingJournal journal = BillingJournal.forFile(file);
+        journal.rewrite(new HashMap<String, CachedPurchase>());
+        file.delete();
+
+        journal.appendPut("first", purchaseJson, "signature");
+
+        Map<String, String> replayed = new HashMap<>();
+        assertTrue(journal.replay(newVisitor(replayed)));
+        assertEquals("signature", replayed.get("first"));
+    }
+
+    private static Map<String, String> replay(BillingJournal journal) throws IOException
+    {
+        Map<String, String> result = new HashMap<>();
+        journal.replay(newVisitor(result));
+        return result;
+    }
+
+    private static BillingJournal.Visitor newVisitor(final Map<String, String> result)
+    {
+        return new BillingJournal.Visitor()
+        {
+            @Override
+            public void onPut(String productId, String details, String signature)
+            {
+                result.put(productId, signature);
+            }
+
+            @Override
+            public void onRemove(String productId)
+            {
+                result.remove(productId);
+            }
+
+            @Override
+            public void onClear()
+            {
+                result.clear();
+            }
+        };
+    }
+}
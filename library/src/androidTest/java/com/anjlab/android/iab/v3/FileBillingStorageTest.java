@@ -0,0 +1,93 @@
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class FileBillingStorageTest
+{
+    private Context context;
+    private SharedPreferences legacyPreferences;
+    private String legacyKey;
+
+    @Before
+    public void setup()
+    {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        legacyPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        legacyKey = context.getPackageName() + "_preferences.purchase.last.v2_6";
+        storageFile().delete();
+    }
+
+    @After
+    public void cleanup()
+    {
+        legacyPreferences.edit().clear().commit();
+        storageFile().delete();
+    }
+
+    @Test
+    public void testMovesLegacyPreferencesIntoFile()
+    {
+        legacyPreferences.edit()
+                .putString(legacyKey, "payload")
+                .putString("unrelated", "kept")
+                .commit();
+
+        assertEquals("payload", new FileBillingStorage(context).getString(legacyKey, null));
+
+        assertFalse(legacyPreferences.contains(legacyKey));
+        assertEquals("kept", legacyPreferences.getString("unrelated", null));
+        assertEquals("payload", new FileBillingStorage(context).getString(legacyKey, null));
+    }
+
+    @Test
+    public void testAppliesBatchTogether()
+    {
+        FileBillingStorage storage = new FileBillingStorage(context);
+        storage.putString("removed", "value");
+        HashMap<String, Object> values = new HashMap<>();
+        values.put("first", "value");
+        values.put("second", true);
+        values.put("removed", null);
+
+        storage.putAll(values);
+
+        FileBillingStorage reloaded = new FileBillingStorage(context);
+        assertEquals("value", reloaded.getString("first", null));
+        assertTrue(reloaded.getBoolean("second", false));
+        assertNull(reloaded.getString("removed", null));
+    }
+
+    @Test
+    public void testSkipsWriteWhenNothingChanges()
+    {
+        FileBillingStorage storage = new FileBillingStorage(context);
+        storage.putString("key", "value");
+        storageFile().delete();
+
+        storage.putString("key", "value");
+        storage.remove("missing");
+
+        assertFalse(storageFile().exists());
+    }
+
+    private File storageFile()
+    {
+        return new File(context.getFilesDir(), "iabv3.storage");
+    }
+}
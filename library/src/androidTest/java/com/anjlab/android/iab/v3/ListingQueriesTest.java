@@ -0,0 +1,201 @@
+package com.anjlab.android.iab.v3;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+public class ListingQueriesTest
+{
+    private static final String TYPE = Constants.PRODUCT_TYPE_MANAGED;
+
+    /**
+     * Records the queries it is asked to send instead of sending them; the values are the
+     * product ids themselves.
+     */
+    private static class RecordingQueries extends ListingQueries<String>
+    {
+        final List<List<String>> sent = new ArrayList<>();
+        final List<Callback<String>> answers = new ArrayList<>();
+        RuntimeException sendFailure;
+        long time;
+
+        RecordingQueries()
+        {
+            super(new ProductDetailsCache<String>(10, 1000));
+        }
+
+        @Override
+        protected void send(String type, List<String> productIds, Callback<String> answer)
+        {
+            sent.add(new ArrayList<>(productIds));
+            answers.add(answer);
+            if (sendFailure != null)
+            {
+                throw sendFailure;
+            }
+        }
+
+        @Override
+        protected String getProductId(String value)
+        {
+            return value;
+        }
+
+        @Override
+        protected long now()
+        {
+            return time;
+        }
+    }
+
+    private static class Result implements ListingQueries.Callback<String>
+    {
+        List<String> values;
+        Exception failure;
+        int calls;
+
+        @Override
+        public void onSuccess(List<String> values)
+        {
+            this.values = values;
+            calls++;
+        }
+
+        @Override
+        public void onFailure(Exception e)
+        {
+            failure = e;
+            calls++;
+        }
+    }
+
+    @Test
+    public void testQueriesOnlyWhatIsNotInFlight()
+    {
+        RecordingQueries queries = new RecordingQueries();
+        Result first = new Result();
+        Result second = new Result();
+
+        queries.request(TYPE, Arrays.asList("a", "b"), false, first);
+        queries.request(TYPE, Arrays.asList("b", "c"), false, second);
+
+        assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c")), queries.sent);
+
+        queries.answers.get(0).onSuccess(Arrays.asList("a", "b"));
+        assertEquals(Arrays.asList("a", "b"), first.values);
+        assertEquals(0, second.calls);
+
+        queries.answers.get(1).onSuccess(Arrays.asList("c"));
+        assertEquals(Arrays.asList("b", "c"), second.values);
+    }
+
+    @Test
+    public void testAnswersFromCacheOnCallingThread()
+    {
+        RecordingQueries queries = new RecordingQueries();
+        queries.request(TYPE, Arrays.asList("a"), false, new Result());
+        queries.answers.get(0).onSuccess(Arrays.asList("a"));
+
+        Result cached = new Result();
+        queries.request(TYPE, Arrays.asList("a", "a"), false, cached);
+
+        assertEquals(1, queries.sent.size());
+        assertEquals(Arrays.asList("a"), cached.values);
+
+        queries.request(TYPE, Arrays.asList("a"), true, new Result());
+        assertEquals(2, queries.sent.size());
+    }
+
+    /**
+     * The path purchase() takes: details already fetched for a listing launch the flow without
+     * another query.
+     */
+    @Test
+    public void testPurchaseOfCachedProductSkipsQuery()
+    {
+        RecordingQueries queries = new RecordingQueries();
+        queries.request(TYPE, Arrays.asList("a", "b"), false, new Result());
+        queries.answers.get(0).onSuccess(Arrays.asList("a", "b"));
+
+        Result purchase = new Result();
+        queries.request(TYPE, Collections.singletonList("b"), false, purchase);
+
+        assertEquals(1, queries.sent.size());
+        assertEquals(1, purchase.calls);
+        assertEquals(Arrays.asList("b"), purchase.values);
+    }
+
+    @Test
+    public void testPurchaseOfUncachedProductQueriesIt()
+    {
+        RecordingQueries queries = new RecordingQueries();
+        queries.request(TYPE, Arrays.asList("a"), false, new Result());
+        queries.answers.get(0).onSuccess(Arrays.asList("a"));
+        // past the cache's time to live
+        queries.time = 1001;
+
+        Result missing = new Result();
+        queries.request(TYPE, Collections.singletonList("b"), false, missing);
+        Result expired = new Result();
+        queries.request(TYPE, Collections.singletonList("a"), false, expired);
+
+        assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("b"), Arrays.asList("a")), queries.sent);
+        assertEquals(0, missing.calls);
+        queries.answers.get(1).onSuccess(Arrays.asList("b"));
+        assertEquals(Arrays.asList("b"), missing.values);
+        queries.answers.get(2).onSuccess(Collections.<String>emptyList());
+        assertTrue(expired.values.isEmpty());
+    }
+
+    @Test
+    public void testFailedSendReleasesProducts()
+    {
+        RecordingQueries queries = new RecordingQueries();
+        IllegalStateException failure = new IllegalStateException("not connected");
+        queries.sendFailure = failure;
+        Result failed = new Result();
+
+        queries.request(TYPE, Arrays.asList("a"), false, failed);
+
+        assertSame(failure, failed.failure);
+        assertEquals(1, failed.calls);
+
+        queries.sendFailure = null;
+        Result retried = new Result();
+        queries.request(TYPE, Arrays.asList("a"), false, retried);
+
+        assertEquals(2, queries.sent.size());
+        queries.answers.get(1).onSuccess(Arrays.asList("a"));
+        assertEquals(Arrays.asList("a"), retried.values);
+
+        // an answer arriving after the send failed is ignored
+        queries.answers.get(0).onSuccess(Arrays.asList("a"));
+        assertEquals(1, failed.calls);
+    }
+
+    @Test
+    public void testFailedQueryFailsEveryWaitingRequest()
+    {
+        RecordingQueries queries = new RecordingQueries();
+        Result first = new Result();
+        Result second = new Result();
+        queries.request(TYPE, Arrays.asList("a"), false, first);
+        queries.request(TYPE, Arrays.asList("a"), false, second);
+
+        Exception failure = new Exception("billing response code: 6");
+        queries.answers.get(0).onFailure(failure);
+
+        assertSame(failure, first.failure);
+        assertSame(failure, second.failure);
+        assertNull(second.values);
+        assertEquals(1, queries.sent.size());
+    }
+}
@@ -0,0 +1,78 @@
+package com.anjlab.android.iab.v3;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+public class ProductDetailsCacheTest
+{
+    private static final String TYPE = Constants.PRODUCT_TYPE_MANAGED;
+
+    @Test
+    public void testExpiresAfterTimeToLive()
+    {
+        ProductDetailsCache<String> cache = new ProductDetailsCache<>(10, 100);
+        cache.put(TYPE, "product", "details", 1000);
+
+        assertEquals("details", cache.get(TYPE, "product", 1099));
+        assertNull(cache.get(TYPE, "product", 1100));
+        assertNull(cache.get(TYPE, "product", 1000));
+    }
+
+    @Test
+    public void testKeepsTypesApart()
+    {
+        ProductDetailsCache<String> cache = new ProductDetailsCache<>(10, 100);
+        cache.put(TYPE, "product", "details", 0);
+
+        assertNull(cache.get(Constants.PRODUCT_TYPE_SUBSCRIPTION, "product", 0));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed()
+    {
+        ProductDetailsCache<String> cache = new ProductDetailsCache<>(2, 100);
+        cache.put(TYPE, "first", "1", 0);
+        cache.put(TYPE, "second", "2", 0);
+        cache.get(TYPE, "first", 0);
+        cache.put(TYPE, "third", "3", 0);
+
+        assertEquals("1", cache.get(TYPE, "first", 0));
+        assertNull(cache.get(TYPE, "second", 0));
+        assertEquals("3", cache.get(TYPE, "third", 0));
+    }
+
+    @Test
+    public void testPolicyAppliesToCachedEntries()
+    {
+        ProductDetailsCache<String> cache = new ProductDetailsCache<>(3, 100);
+        cache.put(TYPE, "first", "1", 0);
+        cache.put(TYPE, "second", "2", 0);
+        cache.put(TYPE, "third", "3", 0);
+
+        cache.setPolicy(1, 10);
+        assertNull(cache.get(TYPE, "second", 0));
+        assertEquals("3", cache.get(TYPE, "third", 0));
+        assertNull(cache.get(TYPE, "third", 10));
+
+        cache.setPolicy(0, 10);
+        cache.put(TYPE, "first", "1", 0);
+        assertNull(cache.get(TYPE, "first", 0));
+    }
+
+    @Test
+    public void testInvalidation()
+    {
+        ProductDetailsCache<String> cache = new ProductDetailsCache<>(10, 100);
+        cache.put(TYPE, "first", "1", 0);
+        cache.put(TYPE, "second", "2", 0);
+
+        cache.invalidate(TYPE, "first");
+        assertNull(cache.get(TYPE, "first", 0));
+        assertEquals("2", cache.get(TYPE, "second", 0));
+
+        cache.invalidateAll();
+        assertNull(cache.get(TYPE, "second", 0));
+    }
+}
@@ -8,6 +8,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
 
 public class PurchaseInfoParcelableTest
 {
@@ -31,6 +32,34 @@ public class PurchaseInfoParcelableTest
 
         assertEquals(purchaseInfo.responseData, newInfo.responseData);
         assertEquals(purchaseInfo.signature, newInfo.signature);
+        assertEquals(purchaseInfo.purchaseData.purchaseToken, newInfo.purchaseData.purchaseToken);
+        assertEquals(purchaseInfo.purchaseData.purchaseTime, newInfo.purchaseData.purchaseTime);
+        assertEquals(purchaseInfo, newInfo);
+    }
+
+    @Test
+    public void testParcelableWithUnparseableData() throws Exception
+    {
+        PurchaseInfo info = new PurchaseInfo("{}", "signature");
+
+        Parcel parcel = Parcel.obtain();
+        info.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+
+        PurchaseInfo newInfo = PurchaseInfo.CREATOR.createFromParcel(parcel);
+
+        assertEquals("{}", newInfo.responseData);
+        assertNull(newInfo.purchaseData);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnknownParcelVersion() throws Exception
+    {
+        Parcel parcel = Parcel.obtain();
+        parcel.writeInt(Integer.MAX_VALUE);
+        parcel.setDataPosition(0);
+
+        PurchaseInfo.CREATOR.createFromParcel(parcel);
     }
 
     @Test
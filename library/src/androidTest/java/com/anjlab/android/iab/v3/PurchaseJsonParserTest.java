@@ -0,0 +1,88 @@
+package com.anjlab.android.iab.v3;
+
+import com.anjlab.android.iab.v3.util.ResourcesUtil;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class PurchaseJsonParserTest
+{
+    @Test
+    public void testReadsSameFieldsAsJsonObject() throws Exception
+    {
+        String json = ResourcesUtil.loadFile("purchase_info.json");
+        JSONObject expected = new JSONObject(json);
+
+        PurchaseData data = PurchaseJsonParser.parsePurchaseData(json);
+
+        assertEquals(expected.getString("orderId"), data.orderId);
+        assertEquals(expected.getString("packageName"), data.packageName);
+        assertEquals(expected.getString("productId"), data.productId);
+        assertEquals(expected.getLong("purchaseTime"), data.purchaseTime.getTime());
+        assertEquals(PurchaseState.PurchasedSuccessfully, data.purchaseState);
+        assertEquals(expected.getString("developerPayload"), data.developerPayload);
+        assertEquals(expected.getString("purchaseToken"), data.purchaseToken);
+        assertFalse(data.autoRenewing);
+        assertFalse(data.hasAutoRenewing);
+    }
+
+    @Test
+    public void testSkipsUnknownKeysAndCoercesValues() throws Exception
+    {
+        PurchaseData data = PurchaseJsonParser.parsePurchaseData("{\"productIds\":[\"a\",{\"b\":null}]," +
+                "\"quantity\":1,\"purchaseToken\":42,\"purchaseTime\":\"1345678900000\",\"autoRenewing\":\"true\"}");
+
+        assertEquals("42", data.purchaseToken);
+        assertEquals(1345678900000L, data.purchaseTime.getTime());
+        assertTrue(data.autoRenewing);
+        assertTrue(data.hasAutoRenewing);
+        assertEquals("", data.productId);
+        assertEquals(PurchaseState.Canceled, data.purchaseState);
+    }
+
+    @Test
+    public void testReportsMissingTokenAndMalformedJson()
+    {
+        assertNull(new PurchaseInfo("{\"productId\":\"product\"}", "signature").purchaseData);
+        assertNull(new PurchaseInfo("{\"productId\":", "signature").purchaseData);
+    }
+
+    @Test
+    public void testRequiresAllHistoryRecordFields() throws Exception
+    {
+        try
+        {
+            new BillingHistoryRecord("{\"productId\":\"product\",\"purchaseToken\":\"token\",\"purchaseTime\":1}",
+                    "signature");
+            fail();
+        }
+        catch (JSONException e)
+        {
+            assertEquals("No value for developerPayload", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testInternsHistoryRecordFieldsWhileParsing() throws Exception
+    {
+        StringInterner interner = new StringInterner(16);
+        String json = "{\"productId\":\"product\",\"purchaseToken\":\"token\",\"purchaseTime\":1," +
+                "\"developerPayload\":\"payload\"}";
+
+        BillingHistoryRecord first = new BillingHistoryRecord(json, "signature", interner);
+        BillingHistoryRecord second = new BillingHistoryRecord(json, "signature", interner);
+
+        assertSame(first.productId, second.productId);
+        assertSame(first.developerPayload, second.developerPayload);
+        assertEquals("token", second.purchaseToken);
+        assertEquals(1, second.purchaseTime);
+    }
+}
@@ -0,0 +1,76 @@
+package com.anjlab.android.iab.v3;
+
+import android.util.Base64;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class SecurityTest
+{
+    private KeyPair keyPair;
+    private String licenseKey;
+
+    @Before
+    public void setup() throws Exception
+    {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        licenseKey = Base64.encodeToString(keyPair.getPublic().getEncoded(), Base64.NO_WRAP);
+    }
+
+    @Test
+    public void testVerifiesNonAsciiDataAndWrappedSignature() throws Exception
+    {
+        String signedData = "{\"productId\":\"caf\u00e9\",\"title\":\"\u20ac \ud83d\ude00\"}";
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(signedData.getBytes("UTF-8"));
+        byte[] signature = signer.sign();
+
+        assertTrue(Security.verifyPurchase("product", licenseKey, signedData,
+                Base64.encodeToString(signature, Base64.DEFAULT)));
+        assertTrue(Security.verifyPurchase("product", licenseKey, signedData,
+                Base64.encodeToString(signature, Base64.NO_WRAP)));
+        assertFalse(Security.verifyPurchase("product", licenseKey, signedData + " ",
+                Base64.encodeToString(signature, Base64.NO_WRAP)));
+    }
+
+    @Test
+    public void testBatchVerdictsFollowInputOrder() throws Exception
+    {
+        int count = 200;
+        String[] productIds = new String[count];
+        String[] signedData = new String[count];
+        String[] signatures = new String[count];
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(keyPair.getPrivate());
+        for (int i = 0; i < count; i++)
+        {
+            productIds[i] = "product." + i;
+            signedData[i] = "{\"productId\":\"product." + i + "\",\"purchaseToken\":\"token-" + i + "\"}";
+            signer.update(signedData[i].getBytes("UTF-8"));
+            signatures[i] = Base64.encodeToString(signer.sign(), Base64.NO_WRAP);
+            if (i % 3 == 0)
+            {
+                signedData[i] += " ";
+            }
+        }
+
+        boolean[] verdicts = Security.verifyPurchases(licenseKey, productIds, signedData, signatures);
+
+        assertEquals(count, verdicts.length);
+        for (int i = 0; i < count; i++)
+        {
+            assertEquals("purchase " + i, i % 3 != 0, verdicts[i]);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.anjlab.android.iab.v3;
+
+import android.os.Parcel;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+public class SkuDetailsTest
+{
+    private static SkuDetails newSubscription()
+    {
+        SkuDetails.Values values = new SkuDetails.Values();
+        values.productId = "subscription";
+        values.title = "Title";
+        values.description = "Description";
+        values.isSubscription = true;
+        values.currency = "USD";
+        values.priceLong = 4990000;
+        values.priceText = "$4.99";
+        values.subscriptionPeriod = "P1M";
+        values.subscriptionFreeTrialPeriod = "P1W";
+        values.introductoryPriceLong = 990000;
+        values.introductoryPriceText = "$0.99";
+        values.introductoryPricePeriod = "P1M";
+        values.introductoryPriceCycles = 3;
+        return new SkuDetails(values);
+    }
+
+    @Test
+    public void testFillsResponseData() throws Exception
+    {
+        SkuDetails details = newSubscription();
+
+        String json = details.responseData;
+        assertNotNull(json);
+
+        SkuDetails parsed = new SkuDetails(new JSONObject(json));
+        assertEquals(details, parsed);
+        assertEquals(details.priceLong, parsed.priceLong);
+        assertEquals(details.priceText, parsed.priceText);
+        assertEquals(details.subscriptionFreeTrialPeriod, parsed.subscriptionFreeTrialPeriod);
+        assertEquals(details.introductoryPriceLong, parsed.introductoryPriceLong);
+        assertEquals(details.introductoryPriceCycles, parsed.introductoryPriceCycles);
+        assertEquals(json, parsed.responseData);
+    }
+
+    @Test
+    public void testDerivesPriceFields()
+    {
+        SkuDetails details = newSubscription();
+
+        assertEquals(4.99, details.priceValue);
+        assertEquals(0.99, details.introductoryPriceValue);
+        assertTrue(details.haveTrialPeriod);
+        assertTrue(details.haveIntroductoryPeriod);
+    }
+
+    @Test
+    public void testParcelsResponseData()
+    {
+        SkuDetails details = newSubscription();
+
+        Parcel parcel = Parcel.obtain();
+        details.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        SkuDetails result = SkuDetails.CREATOR.createFromParcel(parcel);
+
+        assertEquals(details.priceText, result.priceText);
+        assertEquals(details.responseData, result.responseData);
+    }
+}
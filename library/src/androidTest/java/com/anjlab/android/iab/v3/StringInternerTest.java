@@ -0,0 +1,42 @@
+package com.anjlab.android.iab.v3;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+public class StringInternerTest
+{
+    private static final String PURCHASE_JSON = "{\"orderId\":\"%s\",\"packageName\":\"com.example.app\"," +
+            "\"productId\":\"product\",\"developerPayload\":\"\",\"purchaseToken\":\"%s\"}";
+
+    @Test
+    public void testPurchasesShareRepeatedFields()
+    {
+        StringInterner interner = new StringInterner(16);
+
+        PurchaseData first = new PurchaseInfo(String.format(PURCHASE_JSON, "1", "a"), "signature", interner).purchaseData;
+        PurchaseData second = new PurchaseInfo(String.format(PURCHASE_JSON, "2", "b"), "signature", interner).purchaseData;
+
+        assertSame(first.packageName, second.packageName);
+        assertSame(first.productId, second.productId);
+        assertSame(first.developerPayload, second.developerPayload);
+        assertEquals("b", second.purchaseToken);
+    }
+
+    @Test
+    public void testStopsGrowingAtCapacity()
+    {
+        StringInterner interner = new StringInterner(2);
+        String first = new String("first");
+
+        assertSame(first, interner.intern(first));
+        assertSame(first, interner.intern(new String("first")));
+        interner.intern("second");
+        interner.intern("third");
+
+        assertEquals(2, interner.size());
+        assertNull(interner.intern(null));
+    }
+}
@@ -0,0 +1,41 @@
+package com.anjlab.android.iab.v3;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+
+public class VerificationCacheTest
+{
+    @Test
+    public void testKeyDependsOnEveryInput()
+    {
+        ByteBuffer key = VerificationCache.keyFor("data", "signature", "license", "merchant");
+
+        assertEquals(key, VerificationCache.keyFor("data", "signature", "license", "merchant"));
+        assertFalse(key.equals(VerificationCache.keyFor("data", "signature", "license", null)));
+        assertFalse(key.equals(VerificationCache.keyFor("data", "signature", "other", "merchant")));
+        assertFalse(key.equals(VerificationCache.keyFor("datasignature", "", "license", "merchant")));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed()
+    {
+        VerificationCache cache = new VerificationCache(2);
+        ByteBuffer first = VerificationCache.keyFor("first", null, null, null);
+        ByteBuffer second = VerificationCache.keyFor("second", null, null, null);
+        ByteBuffer third = VerificationCache.keyFor("third", null, null, null);
+        cache.put(first, true);
+        cache.put(second, false);
+        cache.get(first);
+
+        cache.put(third, true);
+
+        assertEquals(Boolean.TRUE, cache.get(first));
+        assertNull(cache.get(second));
+        assertEquals(Boolean.TRUE, cache.get(third));
+    }
+}
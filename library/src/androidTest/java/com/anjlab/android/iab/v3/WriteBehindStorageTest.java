@@ -0,0 +1,144 @@
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class WriteBehindStorageTest
+{
+    // long enough that only an explicit flush writes anything while a test runs
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    @Test
+    public void testReadsPendingValues()
+    {
+        RecordingStorage target = new RecordingStorage();
+        WriteBehindStorage storage = new WriteBehindStorage(target, NEVER);
+
+        storage.putString("string", "value");
+        storage.putBoolean("boolean", true);
+
+        assertEquals("value", storage.getString("string", null));
+        assertTrue(storage.getBoolean("boolean", false));
+        assertNull(target.getString("string", null));
+        assertTrue(target.batches.isEmpty());
+    }
+
+    @Test
+    public void testPendingRemoveHidesStoredValue()
+    {
+        RecordingStorage target = new RecordingStorage();
+        target.putString("string", "stored");
+        target.putBoolean("boolean", true);
+        WriteBehindStorage storage = new WriteBehindStorage(target, NEVER);
+
+        storage.remove("string");
+        storage.putString("boolean", null);
+
+        assertNull(storage.getString("string", null));
+        assertFalse(storage.getBoolean("boolean", false));
+        assertEquals("stored", target.getString("string", null));
+    }
+
+    @Test
+    public void testCoalescesWritesIntoOneBatch()
+    {
+        RecordingStorage target = new RecordingStorage();
+        target.putString("removed", "stored");
+        WriteBehindStorage storage = new WriteBehindStorage(target, NEVER);
+
+        storage.putString("key", "first");
+        storage.putString("key", "second");
+        storage.putBoolean("flag", true);
+        storage.remove("removed");
+        storage.flush();
+
+        assertEquals(1, target.batches.size());
+        Map<String, ?> batch = target.batches.get(0);
+        assertEquals(3, batch.size());
+        assertEquals("second", batch.get("key"));
+        assertEquals(Boolean.TRUE, batch.get("flag"));
+        assertTrue(batch.containsKey("removed"));
+        assertNull(batch.get("removed"));
+        assertEquals("second", target.getString("key", null));
+        assertNull(target.getString("removed", null));
+    }
+
+    @Test
+    public void testFlushWritesBeforeReturning()
+    {
+        RecordingStorage target = new RecordingStorage();
+        WriteBehindStorage storage = new WriteBehindStorage(target, NEVER);
+
+        storage.putString("key", "value");
+        storage.flush();
+        storage.flush();
+
+        assertEquals("value", target.getString("key", null));
+        assertEquals(1, target.batches.size());
+        assertEquals(2, target.flushes);
+    }
+
+    @Test
+    public void testWritesInBackgroundAfterDelay() throws Exception
+    {
+        RecordingStorage target = new RecordingStorage();
+        WriteBehindStorage storage = new WriteBehindStorage(target, 10);
+
+        storage.putString("key", "value");
+
+        assertTrue(target.written.await(5, TimeUnit.SECONDS));
+        assertEquals("value", target.getString("key", null));
+    }
+
+    @Test
+    public void testSwappingStorageFlushesReplacedBuffer()
+    {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        RecordingStorage target = new RecordingStorage();
+        BillingBase base = new BillingBase(context, new WriteBehindStorage(target, NEVER));
+        base.saveString("key", "value");
+        base.removeKey("removed");
+
+        base.setStorage(target);
+
+        assertEquals("value", target.getString("key", null));
+        assertEquals(1, target.batches.size());
+        assertEquals("value", base.loadString("key", null));
+    }
+
+    private static class RecordingStorage extends InMemoryBillingStorage
+    {
+        final List<Map<String, ?>> batches = new ArrayList<>();
+        final CountDownLatch written = new CountDownLatch(1);
+        int flushes;
+
+        @Override
+        public synchronized void putAll(Map<String, ?> values)
+        {
+            batches.add(new HashMap<>(values));
+            super.putAll(values);
+            written.countDown();
+        }
+
+        @Override
+        public synchronized void flush()
+        {
+            flushes++;
+        }
+    }
+}
@@ -16,16 +16,17 @@
 package com.anjlab.android.iab.v3;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 
 class BillingBase
 {
 	private Context context;
+	// swapped at runtime while the cache may be loading on another thread
+	private volatile BillingStorage storage;
 
-	BillingBase(Context context)
+	BillingBase(Context context, BillingStorage storage)
 	{
 		this.context = context;
+		this.storage = storage;
 	}
 
 	Context getContext()
@@ -33,59 +34,55 @@ class BillingBase
 		return context;
 	}
 
-	String getPreferencesBaseKey()
+	BillingStorage getStorage()
 	{
-		return getContext().getPackageName() + "_preferences";
+		return storage;
+	}
+
+	/**
+	 * Replaces the storage. A write-behind storage that is replaced gets flushed once it is no
+	 * longer in use, so writes still queued in it are not lost.
+	 */
+	void setStorage(BillingStorage storage)
+	{
+		BillingStorage previous = this.storage;
+		this.storage = storage;
+		if (previous instanceof WriteBehindStorage && previous != storage)
+		{
+			previous.flush();
+		}
 	}
 
-	private SharedPreferences getPreferences()
+	String getPreferencesBaseKey()
 	{
-		return PreferenceManager.getDefaultSharedPreferences(getContext());
+		return getContext().getPackageName() + "_preferences";
 	}
 
 	boolean saveString(String key, String value)
 	{
-		SharedPreferences sp = getPreferences();
-		if (sp != null)
-		{
-			SharedPreferences.Editor spe = sp.edit();
-			spe.putString(key, value);
-			spe.commit();
-			return true;
-		}
-		return false;
+		storage.putString(key, value);
+		return true;
 	}
 
 	String loadString(String key, String defValue)
 	{
-		SharedPreferences sp = getPreferences();
-		if (sp != null)
-		{
-			return sp.getString(key, defValue);
-		}
-		return defValue;
+		return storage.getString(key, defValue);
+	}
+
+	boolean removeKey(String key)
+	{
+		storage.remove(key);
+		return true;
 	}
 
 	boolean saveBoolean(String key, Boolean value)
 	{
-		SharedPreferences sp = getPreferences();
-		if (sp != null)
-		{
-			SharedPreferences.Editor spe = sp.edit();
-			spe.putBoolean(key, value);
-			spe.commit();
-			return true;
-		}
-		return false;
+		storage.putBoolean(key, value);
+		return true;
 	}
 
 	boolean loadBoolean(String key, boolean defValue)
 	{
-		SharedPreferences sp = getPreferences();
-		if (sp != null)
-		{
-			return sp.getBoolean(key, defValue);
-		}
-		return defValue;
+		return storage.getBoolean(key, defValue);
 	}
 }
@@ -18,28 +18,139 @@ package com.anjlab.android.iab.v3;
 import android.content.Context;
 import android.text.TextUtils;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
+/**
+ * Purchases of one type, backed by a {@link BillingJournal}.
+ * <p>
+ * The contents are held in an immutable snapshot that is replaced as a whole on every change.
+ * Readers use whichever snapshot is current without locking; writers serialize on the cache.
+ */
 class BillingCache extends BillingBase
 {
 	private static final String ENTRY_DELIMITER = "#####";
 	private static final String LINE_DELIMITER = ">>>>>";
 	private static final String VERSION_KEY = ".version";
+	private static final String JOURNAL_FILE_PREFIX = "iabv3";
+	private static final String JOURNAL_FILE_SUFFIX = ".journal";
 
-	private HashMap<String, PurchaseInfo> data;
+	private volatile Map<String, CachedPurchase> data = Collections.emptyMap();
 	private String cacheKey;
-	private String version;
+	private volatile long loadedGeneration;
+	private BillingJournal journal;
+	private final StringInterner interner;
+	private final CountDownLatch loaded = new CountDownLatch(1);
+
+	private final Runnable initialLoad = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			try
+			{
+				load();
+			}
+			finally
+			{
+				loaded.countDown();
+			}
+		}
+	};
 
-	BillingCache(Context context, String key)
+	BillingCache(Context context, BillingStorage storage, String key)
 	{
-		super(context);
-		data = new HashMap<>();
+		this(context, storage, key, null);
+	}
+
+	BillingCache(Context context, BillingStorage storage, String key, Executor executor)
+	{
+		this(context, storage, key, executor, null);
+	}
+
+	/**
+	 * @param executor runs the initial load, or null to load on the calling thread. Until the load
+	 *                 completes, every access other than {@link #isLoaded()} and
+	 *                 {@link #awaitLoaded(long, TimeUnit)} blocks.
+	 * @param interner shared by the purchases this cache parses, or null
+	 */
+	BillingCache(Context context, BillingStorage storage, String key, Executor executor, StringInterner interner)
+	{
+		super(context, storage);
 		cacheKey = key;
-		load();
+		this.interner = interner;
+		File directory = storage.getCacheDirectory();
+		if (directory != null)
+		{
+			journal = BillingJournal.forFile(new File(directory,
+					JOURNAL_FILE_PREFIX + key + JOURNAL_FILE_SUFFIX));
+		}
+		if (executor == null)
+		{
+			initialLoad.run();
+		}
+		else
+		{
+			executor.execute(initialLoad);
+		}
+	}
+
+	boolean isLoaded()
+	{
+		return loaded.getCount() == 0;
+	}
+
+	/**
+	 * @return true if the cache is loaded, false if the timeout elapsed first
+	 */
+	boolean awaitLoaded(long timeout, TimeUnit unit)
+	{
+		try
+		{
+			return loaded.await(timeout, unit);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return isLoaded();
+		}
+	}
+
+	/**
+	 * Must not be called while holding the cache's monitor: the initial load needs it.
+	 */
+	private void awaitLoaded()
+	{
+		if (isLoaded())
+		{
+			return;
+		}
+		boolean interrupted = false;
+		while (true)
+		{
+			try
+			{
+				loaded.await();
+				break;
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	private String getPreferencesCacheKey()
@@ -52,39 +163,150 @@ class BillingCache extends BillingBase
 		return getPreferencesCacheKey() + VERSION_KEY;
 	}
 
-	private void load()
+	private synchronized void load()
 	{
-		String[] entries = loadString(getPreferencesCacheKey(), "").split(Pattern.quote(ENTRY_DELIMITER));
-		for (String entry : entries)
+		if (journal != null)
+		{
+			// read before replaying: a write racing with the replay leaves this cache stale, not wrong
+			long generation = journal.getGeneration();
+			HashMap<String, CachedPurchase> entries = new HashMap<>();
+			if (journal.exists())
+			{
+				try
+				{
+					if (!journal.replay(newReplayVisitor(entries)))
+					{
+						// keep the unreadable file around, and start over as if there were no journal
+						entries.clear();
+						if (journal.moveAside())
+						{
+							generation = migrateFromPreferences(entries);
+						}
+						else
+						{
+							detachJournal();
+						}
+					}
+				}
+				catch (IOException e)
+				{
+					// possibly transient: leave the file alone so the next start reads it again
+					entries.clear();
+					detachJournal();
+				}
+			}
+			else
+			{
+				generation = migrateFromPreferences(entries);
+			}
+			publish(entries);
+			loadedGeneration = generation;
+		}
+	}
+
+	/**
+	 * Keeps this cache in memory only, so it neither writes to nor reloads from a journal it
+	 * could not read.
+	 */
+	private void detachJournal()
+	{
+		journal = null;
+	}
+
+	private static BillingJournal.Visitor newReplayVisitor(final Map<String, CachedPurchase> entries)
+	{
+		return new BillingJournal.Visitor()
+		{
+			@Override
+			public void onPut(String productId, String details, String signature)
+			{
+				entries.put(productId, new CachedPurchase(details, signature));
+			}
+
+			@Override
+			public void onRemove(String productId)
+			{
+				entries.remove(productId);
+			}
+
+			@Override
+			public void onClear()
+			{
+				entries.clear();
+			}
+		};
+	}
+
+	/**
+	 * Moves the cache written by versions that kept it inside SharedPreferences into the
+	 * journal. The legacy entry is deleted only once the journal is safely on disk; if it
+	 * cannot be written, the cache stays in memory and the next start tries again.
+	 *
+	 * @return the journal generation the entries correspond to
+	 */
+	private long migrateFromPreferences(Map<String, CachedPurchase> entries)
+	{
+		String legacyCache = loadString(getPreferencesCacheKey(), null);
+		if (legacyCache != null)
+		{
+			parseLegacyCache(legacyCache, entries);
+		}
+		if (!journal.rewrite(entries))
+		{
+			detachJournal();
+			return 0;
+		}
+		if (legacyCache != null)
+		{
+			removeKey(getPreferencesCacheKey());
+			removeKey(getPreferencesVersionKey());
+		}
+		return journal.getGeneration();
+	}
+
+	private static void parseLegacyCache(String cache, Map<String, CachedPurchase> entries)
+	{
+		String[] lines = cache.split(Pattern.quote(ENTRY_DELIMITER));
+		for (String entry : lines)
 		{
 			if (!TextUtils.isEmpty(entry))
 			{
 				String[] parts = entry.split(Pattern.quote(LINE_DELIMITER));
 				if (parts.length > 2)
 				{
-					data.put(parts[0], new PurchaseInfo(parts[1], parts[2]));
+					entries.put(parts[0], new CachedPurchase(parts[1], parts[2]));
 				}
 				else if (parts.length > 1)
 				{
-					data.put(parts[0], new PurchaseInfo(parts[1], null));
+					entries.put(parts[0], new CachedPurchase(parts[1], null));
 				}
 			}
 		}
-		version = getCurrentVersion();
 	}
 
-	private void flush()
+	/**
+	 * Replaces the current snapshot. The map must not be modified afterwards.
+	 */
+	private void publish(Map<String, CachedPurchase> entries)
+	{
+		data = Collections.unmodifiableMap(entries);
+	}
+
+	/**
+	 * @param generation journal generation right after this cache's own write
+	 */
+	private void onChanged(long generation)
 	{
-		ArrayList<String> output = new ArrayList<>();
-		for (String productId : data.keySet())
+		if (journal == null)
 		{
-			PurchaseInfo info = data.get(productId);
-			output.add(productId + LINE_DELIMITER + info.responseData + LINE_DELIMITER +
-					info.signature);
+			return;
 		}
-		saveString(getPreferencesCacheKey(), TextUtils.join(ENTRY_DELIMITER, output));
-		version = Long.toString(new Date().getTime());
-		saveString(getPreferencesVersionKey(), version);
+		// if another cache sharing the journal wrote in between, stay stale so its write is picked up
+		if (generation == loadedGeneration + 1)
+		{
+			loadedGeneration = generation;
+		}
+		journal.compactIfNeeded(data.size());
 	}
 
 	boolean includesProduct(String productId)
@@ -96,52 +318,277 @@ class BillingCache extends BillingBase
 	PurchaseInfo getDetails(String productId)
 	{
 		reloadDataIfNeeded();
-		return data.containsKey(productId) ? data.get(productId) : null;
+		CachedPurchase purchase = data.get(productId);
+		return purchase != null ? purchase.getPurchaseInfo(interner) : null;
 	}
 
-	void put(String productId, String details, String signature)
+	/**
+	 * @return the entry's canonical details, built on the first call and then shared by every
+	 * caller until the entry changes
+	 */
+	TransactionDetails getTransactionDetails(String productId)
 	{
 		reloadDataIfNeeded();
-		if (!data.containsKey(productId))
+		CachedPurchase purchase = data.get(productId);
+		return purchase != null ? purchase.getTransactionDetails(interner) : null;
+	}
+
+	void put(String productId, String details, String signature)
+	{
+		awaitLoaded();
+		synchronized (this)
 		{
-			data.put(productId, new PurchaseInfo(details, signature));
-			flush();
+			reloadDataIfNeeded();
+			if (!data.containsKey(productId))
+			{
+				HashMap<String, CachedPurchase> entries = new HashMap<>(data);
+				entries.put(productId, new CachedPurchase(details, signature));
+				try
+				{
+					long generation = journal != null ? journal.appendPut(productId, details, signature) : 0;
+					publish(entries);
+					onChanged(generation);
+				}
+				catch (IOException e)
+				{
+					// logged by the journal; the snapshot stays in line with the file
+				}
+			}
 		}
 	}
 
 	void remove(String productId)
 	{
-		reloadDataIfNeeded();
-		if (data.containsKey(productId))
+		awaitLoaded();
+		synchronized (this)
 		{
-			data.remove(productId);
-			flush();
+			reloadDataIfNeeded();
+			if (data.containsKey(productId))
+			{
+				HashMap<String, CachedPurchase> entries = new HashMap<>(data);
+				entries.remove(productId);
+				try
+				{
+					long generation = journal != null ? journal.appendRemove(productId) : 0;
+					publish(entries);
+					onChanged(generation);
+				}
+				catch (IOException e)
+				{
+					// logged by the journal; the snapshot stays in line with the file
+				}
+			}
 		}
 	}
 
 	void clear()
 	{
-		reloadDataIfNeeded();
-		data.clear();
-		flush();
+		awaitLoaded();
+		synchronized (this)
+		{
+			reloadDataIfNeeded();
+			try
+			{
+				long generation = journal != null ? journal.appendClear() : 0;
+				data = Collections.emptyMap();
+				onChanged(generation);
+			}
+			catch (IOException e)
+			{
+				// logged by the journal; the snapshot stays in line with the file
+			}
+		}
 	}
 
-	private String getCurrentVersion()
+	/**
+	 * Makes the cache hold exactly the given purchases. Only what was added, removed or changed
+	 * is written, as a single journal record, and nothing at all if the cache is already up to date.
+	 *
+	 * @return true if the cache changed, false if it was up to date or the change could not be written
+	 */
+	boolean replaceAll(Map<String, CachedPurchase> purchases)
 	{
-		return loadString(getPreferencesVersionKey(), "0");
+		awaitLoaded();
+		synchronized (this)
+		{
+			reloadDataIfNeeded();
+			Editor editor = edit();
+			for (String productId : data.keySet())
+			{
+				if (!purchases.containsKey(productId))
+				{
+					editor.remove(productId);
+				}
+			}
+			for (Map.Entry<String, CachedPurchase> entry : purchases.entrySet())
+			{
+				editor.put(entry.getKey(), entry.getValue());
+			}
+			return editor.commit();
+		}
 	}
 
+	/**
+	 * Starts a batch of changes that are applied together by {@link Editor#commit()}.
+	 */
+	Editor edit()
+	{
+		return new Editor();
+	}
+
+	/**
+	 * Collects puts and removes and applies them as one change: readers see either none or all
+	 * of them, and they are written as a single journal record under one generation.
+	 * Changes that would leave an entry as it is are dropped, so a batch with nothing left to
+	 * do writes nothing.
+	 */
+	class Editor
+	{
+		private final List<BillingJournal.Mutation> mutations = new ArrayList<>();
+
+		private Editor()
+		{
+		}
+
+		/**
+		 * Unlike {@link BillingCache#put(String, String, String)}, replaces an existing entry.
+		 */
+		Editor put(String productId, String details, String signature)
+		{
+			mutations.add(BillingJournal.Mutation.put(productId, details, signature));
+			return this;
+		}
+
+		/**
+		 * Stores {@code purchase} itself, so a purchase parsed before it was cached is not parsed again.
+		 */
+		Editor put(String productId, CachedPurchase purchase)
+		{
+			mutations.add(BillingJournal.Mutation.put(productId, purchase));
+			return this;
+		}
+
+		Editor remove(String productId)
+		{
+			mutations.add(BillingJournal.Mutation.remove(productId));
+			return this;
+		}
+
+		Editor clear()
+		{
+			mutations.add(BillingJournal.Mutation.clear());
+			return this;
+		}
+
+		/**
+		 * Nothing is applied unless the journal record is written, so after a failed write the
+		 * cache still matches what is on disk.
+		 *
+		 * @return true if the cache changed, false if there was nothing to change or the change
+		 * could not be written
+		 */
+		boolean commit()
+		{
+			return apply(mutations);
+		}
+	}
+
+	private boolean apply(List<BillingJournal.Mutation> mutations)
+	{
+		awaitLoaded();
+		synchronized (this)
+		{
+			reloadDataIfNeeded();
+			HashMap<String, CachedPurchase> entries = new HashMap<>(data);
+			List<BillingJournal.Mutation> effective = new ArrayList<>(mutations.size());
+			for (BillingJournal.Mutation mutation : mutations)
+			{
+				if (mutation.apply(entries))
+				{
+					effective.add(mutation);
+				}
+			}
+			if (effective.isEmpty())
+			{
+				return false;
+			}
+			try
+			{
+				long generation = journal != null ? journal.appendBatch(effective) : 0;
+				publish(entries);
+				onChanged(generation);
+				return true;
+			}
+			catch (IOException e)
+			{
+				// logged by the journal; the snapshot stays in line with the file
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Reloads from the journal if another cache sharing it has written since this one loaded.
+	 * Once loaded, the check is two volatile reads, so callers on the hot path pay no locking cost.
+	 */
 	private void reloadDataIfNeeded()
 	{
-		if (!version.equalsIgnoreCase(getCurrentVersion()))
+		awaitLoaded();
+		// without a journal there is nothing to reload from; the data lives in this instance only
+		if (journal != null && loadedGeneration != journal.getGeneration())
+		{
+			synchronized (this)
+			{
+				if (loadedGeneration != journal.getGeneration())
+				{
+					load();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the current contents; the map never changes
+	 */
+	Map<String, CachedPurchase> getSnapshot()
+	{
+		reloadDataIfNeeded();
+		return data;
+	}
+
+	/**
+	 * Removes the given entries, except those that were replaced since they were read.
+	 *
+	 * @return the ids of the removed entries; empty if the removal could not be written, in
+	 * which case every entry is kept
+	 */
+	List<String> removeUnlessChanged(Map<String, CachedPurchase> entries)
+	{
+		awaitLoaded();
+		synchronized (this)
 		{
-			data.clear();
-			load();
+			reloadDataIfNeeded();
+			List<String> removed = new ArrayList<>();
+			Editor editor = edit();
+			for (Map.Entry<String, CachedPurchase> entry : entries.entrySet())
+			{
+				if (entry.getValue().isSameAs(data.get(entry.getKey())))
+				{
+					editor.remove(entry.getKey());
+					removed.add(entry.getKey());
+				}
+			}
+			if (removed.isEmpty() || !editor.commit())
+			{
+				return Collections.emptyList();
+			}
+			return removed;
 		}
 	}
 
 	List<String> getContents()
 	{
+		reloadDataIfNeeded();
 		return new ArrayList<>(data.keySet());
 	}
 
@@ -150,4 +597,4 @@ class BillingCache extends BillingBase
 	{
 		return TextUtils.join(", ", data.keySet());
 	}
-}
\ No newline at end of file
+}
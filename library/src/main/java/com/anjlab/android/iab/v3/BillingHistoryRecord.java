@@ -2,10 +2,14 @@ package com.anjlab.android.iab.v3;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.JsonReader;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.StringReader;
+
 public class BillingHistoryRecord implements Parcelable
 {
 
@@ -17,7 +21,66 @@ public class BillingHistoryRecord implements Parcelable
 
     public BillingHistoryRecord(String dataAsJson, String signature) throws JSONException
     {
-        this(new JSONObject(dataAsJson), signature);
+        this(dataAsJson, signature, null);
+    }
+
+    /**
+     * Reads the record in a single pass, the way {@link PurchaseJsonParser} reads purchases.
+     *
+     * @param interner canonicalizes the fields that repeat across records, or null
+     * @throws JSONException if the JSON is malformed or any of the record's fields is missing
+     */
+    BillingHistoryRecord(String dataAsJson, String signature, StringInterner interner) throws JSONException
+    {
+        String productId = null;
+        String purchaseToken = null;
+        Long purchaseTime = null;
+        String developerPayload = null;
+
+        JsonReader reader = new JsonReader(new StringReader(dataAsJson));
+        try
+        {
+            reader.beginObject();
+            while (reader.hasNext())
+            {
+                switch (reader.nextName())
+                {
+                    case Constants.RESPONSE_PRODUCT_ID:
+                        productId = PurchaseJsonParser.readString(reader, null);
+                        break;
+                    case Constants.RESPONSE_PURCHASE_TOKEN:
+                        purchaseToken = PurchaseJsonParser.readString(reader, null);
+                        break;
+                    case Constants.RESPONSE_PURCHASE_TIME:
+                        purchaseTime = PurchaseJsonParser.readLong(reader);
+                        break;
+                    case Constants.RESPONSE_DEVELOPER_PAYLOAD:
+                        developerPayload = PurchaseJsonParser.readString(reader, null);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        }
+        catch (IOException | IllegalStateException e)
+        {
+            throw PurchaseJsonParser.newException(e);
+        }
+        finally
+        {
+            PurchaseJsonParser.close(reader);
+        }
+        PurchaseJsonParser.requireValue(productId, Constants.RESPONSE_PRODUCT_ID);
+        PurchaseJsonParser.requireValue(purchaseToken, Constants.RESPONSE_PURCHASE_TOKEN);
+        PurchaseJsonParser.requireValue(purchaseTime, Constants.RESPONSE_PURCHASE_TIME);
+        PurchaseJsonParser.requireValue(developerPayload, Constants.RESPONSE_DEVELOPER_PAYLOAD);
+        this.productId = PurchaseJsonParser.intern(interner, productId);
+        this.purchaseToken = purchaseToken;
+        this.purchaseTime = purchaseTime;
+        this.developerPayload = PurchaseJsonParser.intern(interner, developerPayload);
+        this.signature = signature;
     }
 
     public BillingHistoryRecord(JSONObject json, String signature) throws JSONException
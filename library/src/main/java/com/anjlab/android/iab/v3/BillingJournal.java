@@ -0,0 +1,666 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Append-only log of {@link BillingCache} mutations.
+ * <p>
+ * Every mutation appends a single record, so its cost does not depend on how many
+ * purchases are cached. The current state is rebuilt by replaying the log, which is
+ * rewritten from a snapshot in the background once stale records outnumber live ones.
+ * <p>
+ * There is a single instance per file, so caches opened with the same key share it.
+ * <p>
+ * File layout (all integers big-endian):
+ * <pre>
+ * header:  int magic, byte format version
+ * record:  int length, byte op, payload[length - 1]
+ * PUT:     string productId, string details, string signature
+ * REMOVE:  string productId
+ * CLEAR:   (empty)
+ * BATCH:   int count, then count x (byte op, PUT/REMOVE/CLEAR payload)
+ * string:  int byte count (-1 for null), UTF-8 bytes
+ * </pre>
+ */
+class BillingJournal
+{
+	interface Visitor
+	{
+		void onPut(String productId, String details, String signature);
+
+		void onRemove(String productId);
+
+		void onClear();
+	}
+
+	/**
+	 * A single PUT, REMOVE or CLEAR, for appending several of them as one batch.
+	 */
+	static final class Mutation
+	{
+		final byte op;
+		final String productId;
+		final String details;
+		final String signature;
+		private final CachedPurchase purchase;
+
+		private Mutation(byte op, String productId, CachedPurchase purchase)
+		{
+			this.op = op;
+			this.productId = productId;
+			this.purchase = purchase;
+			this.details = purchase != null ? purchase.responseData : null;
+			this.signature = purchase != null ? purchase.signature : null;
+		}
+
+		static Mutation put(String productId, String details, String signature)
+		{
+			return put(productId, new CachedPurchase(details, signature));
+		}
+
+		/**
+		 * The entry put in the cache is {@code purchase} itself, including what it has parsed.
+		 */
+		static Mutation put(String productId, CachedPurchase purchase)
+		{
+			return new Mutation(OP_PUT, productId, purchase);
+		}
+
+		static Mutation remove(String productId)
+		{
+			return new Mutation(OP_REMOVE, productId, null);
+		}
+
+		static Mutation clear()
+		{
+			return new Mutation(OP_CLEAR, null, null);
+		}
+
+		/**
+		 * @return false if the mutation left the entries as they were
+		 */
+		boolean apply(Map<String, CachedPurchase> entries)
+		{
+			switch (op)
+			{
+				case OP_PUT:
+					if (purchase.isSameAs(entries.get(productId)))
+					{
+						return false;
+					}
+					entries.put(productId, purchase);
+					return true;
+				case OP_REMOVE:
+					if (!entries.containsKey(productId))
+					{
+						return false;
+					}
+					entries.remove(productId);
+					return true;
+				default:
+					if (entries.isEmpty())
+					{
+						return false;
+					}
+					entries.clear();
+					return true;
+			}
+		}
+	}
+
+	private static final String LOG_TAG = "iabv3.journal";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int MAGIC = 0x49414233;
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 5;
+
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+	private static final byte OP_CLEAR = 3;
+	private static final byte OP_BATCH = 4;
+
+	private static final int COMPACTION_MIN_RECORDS = 64;
+
+	private static final HashMap<String, BillingJournal> JOURNALS = new HashMap<>();
+
+	private static final Executor COMPACTION_EXECUTOR =
+			Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "iabv3-journal");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+
+	private final File file;
+	private volatile long generation;
+	private int recordCount;
+	private boolean compactionScheduled;
+	private byte[] stringBuffer = new byte[512];
+
+	private final Runnable compaction = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			compact();
+		}
+	};
+
+	private BillingJournal(File file)
+	{
+		this.file = file;
+	}
+
+	static BillingJournal forFile(File file)
+	{
+		synchronized (JOURNALS)
+		{
+			String path = file.getAbsolutePath();
+			BillingJournal journal = JOURNALS.get(path);
+			if (journal == null)
+			{
+				journal = new BillingJournal(file);
+				JOURNALS.put(path, journal);
+			}
+			return journal;
+		}
+	}
+
+	boolean exists()
+	{
+		return file.exists();
+	}
+
+	/**
+	 * Incremented whenever the content of the journal changes. Caches sharing the journal
+	 * compare it with the generation they loaded to find out whether they are stale.
+	 */
+	long getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * Replays all complete records. A record cut short by a crash in the middle of an
+	 * append is dropped and the file is truncated back to the last complete record.
+	 *
+	 * @return false if the journal is not in a format this version can read
+	 * @throws IOException if the journal could not be read; it is left as it is
+	 */
+	synchronized boolean replay(Visitor visitor) throws IOException
+	{
+		FileInputStream stream = null;
+		try
+		{
+			stream = new FileInputStream(file);
+			FileChannel channel = stream.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+			{
+				Log.e(LOG_TAG, "Unknown journal format: " + file);
+				return false;
+			}
+			byte formatVersion = buffer.get();
+			if (formatVersion != FORMAT_VERSION)
+			{
+				Log.e(LOG_TAG, "Unsupported journal version " + formatVersion + ": " + file);
+				return false;
+			}
+			replayRecords(buffer, visitor);
+			return true;
+		}
+		catch (IOException e)
+		{
+			Log.e(LOG_TAG, "Failed to read " + file, e);
+			throw e;
+		}
+		finally
+		{
+			closeQuietly(stream);
+		}
+	}
+
+	/**
+	 * Renames a journal that cannot be replayed, so a new one can be started while the old
+	 * file is kept for inspection.
+	 *
+	 * @return false if the file could not be renamed
+	 */
+	synchronized boolean moveAside()
+	{
+		File unreadable = new File(file.getPath() + ".unreadable");
+		unreadable.delete();
+		if (!file.renameTo(unreadable))
+		{
+			Log.e(LOG_TAG, "Failed to rename " + file + " to " + unreadable);
+			return false;
+		}
+		generation++;
+		return true;
+	}
+
+	private void replayRecords(ByteBuffer buffer, Visitor visitor)
+	{
+		int fileLength = buffer.limit();
+		int validLength = buffer.position();
+		recordCount = 0;
+		try
+		{
+			while (buffer.remaining() > 0)
+			{
+				int length = buffer.getInt();
+				if (length < 1 || length > buffer.remaining())
+				{
+					throw new EOFException();
+				}
+				int end = buffer.position() + length;
+				buffer.limit(end);
+				byte op = buffer.get();
+				if (op == OP_BATCH)
+				{
+					int count = buffer.getInt();
+					for (int i = 0; i < count; i++)
+					{
+						replayMutation(buffer.get(), buffer, visitor);
+					}
+					recordCount += count;
+				}
+				else
+				{
+					replayMutation(op, buffer, visitor);
+					recordCount++;
+				}
+				buffer.limit(fileLength);
+				buffer.position(end);
+				validLength = end;
+			}
+		}
+		catch (EOFException | BufferUnderflowException e)
+		{
+			Log.w(LOG_TAG, "Dropping incomplete record at the end of " + file);
+			truncate(validLength);
+		}
+		catch (IOException e)
+		{
+			Log.e(LOG_TAG, "Dropping unreadable records at the end of " + file, e);
+			truncate(validLength);
+		}
+	}
+
+	private void replayMutation(byte op, ByteBuffer buffer, Visitor visitor) throws IOException
+	{
+		switch (op)
+		{
+			case OP_PUT:
+				String productId = readString(buffer);
+				String details = readString(buffer);
+				String signature = readString(buffer);
+				visitor.onPut(productId, details, signature);
+				break;
+			case OP_REMOVE:
+				visitor.onRemove(readString(buffer));
+				break;
+			case OP_CLEAR:
+				visitor.onClear();
+				break;
+			default:
+				throw new IOException("Unknown journal record " + op);
+		}
+	}
+
+	private String readString(ByteBuffer buffer) throws EOFException
+	{
+		int length = buffer.getInt();
+		if (length < 0)
+		{
+			return null;
+		}
+		if (length > buffer.remaining())
+		{
+			throw new EOFException();
+		}
+		if (stringBuffer.length < length)
+		{
+			stringBuffer = new byte[Math.max(length, stringBuffer.length * 2)];
+		}
+		buffer.get(stringBuffer, 0, length);
+		return new String(stringBuffer, 0, length, UTF_8);
+	}
+
+	/**
+	 * @return the generation after the append
+	 * @throws IOException if the record could not be written; the file is left as it was
+	 */
+	synchronized long appendPut(String productId, String details, String signature) throws IOException
+	{
+		append(encodePut(productId, details, signature));
+		return generation;
+	}
+
+	/**
+	 * @return the generation after the append
+	 * @throws IOException if the record could not be written; the file is left as it was
+	 */
+	synchronized long appendRemove(String productId) throws IOException
+	{
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeByte(OP_REMOVE);
+		writeString(out, productId);
+		append(payload);
+		return generation;
+	}
+
+	/**
+	 * @return the generation after the append
+	 * @throws IOException if the record could not be written; the file is left as it was
+	 */
+	synchronized long appendClear() throws IOException
+	{
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		payload.write(OP_CLEAR);
+		append(payload);
+		return generation;
+	}
+
+	/**
+	 * Appends all mutations as one record, so a crash keeps either all of them or none.
+	 * Nothing is written for an empty list.
+	 *
+	 * @return the generation after the append
+	 * @throws IOException if the record could not be written; the file is left as it was
+	 */
+	synchronized long appendBatch(List<Mutation> mutations) throws IOException
+	{
+		if (mutations.isEmpty())
+		{
+			return generation;
+		}
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeByte(OP_BATCH);
+		out.writeInt(mutations.size());
+		for (Mutation mutation : mutations)
+		{
+			out.writeByte(mutation.op);
+			if (mutation.op == OP_PUT)
+			{
+				writeString(out, mutation.productId);
+				writeString(out, mutation.details);
+				writeString(out, mutation.signature);
+			}
+			else if (mutation.op == OP_REMOVE)
+			{
+				writeString(out, mutation.productId);
+			}
+		}
+		append(payload);
+		// append() counted the batch as one record
+		recordCount += mutations.size() - 1;
+		return generation;
+	}
+
+	/**
+	 * Schedules a background rewrite once stale records make up most of the log.
+	 *
+	 * @param liveEntries number of entries the caller currently holds
+	 */
+	synchronized void compactIfNeeded(int liveEntries)
+	{
+		if (!compactionScheduled && recordCount > COMPACTION_MIN_RECORDS &&
+				recordCount > 2 * liveEntries)
+		{
+			compactionScheduled = true;
+			COMPACTION_EXECUTOR.execute(compaction);
+		}
+	}
+
+	/**
+	 * Replaces the journal with one PUT record per live entry.
+	 *
+	 * @return true once the new journal is safely on disk
+	 */
+	synchronized boolean rewrite(Map<String, CachedPurchase> entries)
+	{
+		generation++;
+		Map<String, String[]> records = new LinkedHashMap<>();
+		for (Map.Entry<String, CachedPurchase> entry : entries.entrySet())
+		{
+			CachedPurchase purchase = entry.getValue();
+			records.put(entry.getKey(), new String[]{purchase.responseData, purchase.signature});
+		}
+		return writeRecords(records);
+	}
+
+	private synchronized void compact()
+	{
+		compactionScheduled = false;
+		final Map<String, String[]> records = new LinkedHashMap<>();
+		boolean replayed;
+		try
+		{
+			replayed = replay(new Visitor()
+			{
+				@Override
+				public void onPut(String productId, String details, String signature)
+				{
+					records.put(productId, new String[]{details, signature});
+				}
+
+				@Override
+				public void onRemove(String productId)
+				{
+					records.remove(productId);
+				}
+
+				@Override
+				public void onClear()
+				{
+					records.clear();
+				}
+			});
+		}
+		catch (IOException e)
+		{
+			// already logged; the journal stays as it is until the next compaction
+			return;
+		}
+		if (replayed)
+		{
+			writeRecords(records);
+		}
+	}
+
+	/**
+	 * The new log is written next to the old one and renamed over it,
+	 * so a crash leaves either version intact.
+	 */
+	private boolean writeRecords(Map<String, String[]> records)
+	{
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = null;
+		try
+		{
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(content);
+			out.writeInt(MAGIC);
+			out.writeByte(FORMAT_VERSION);
+			for (Map.Entry<String, String[]> record : records.entrySet())
+			{
+				ByteArrayOutputStream payload =
+						encodePut(record.getKey(), record.getValue()[0], record.getValue()[1]);
+				out.writeInt(payload.size());
+				payload.writeTo(out);
+			}
+			stream = new FileOutputStream(temp);
+			content.writeTo(stream);
+			stream.getFD().sync();
+			stream.close();
+			stream = null;
+			if (!temp.renameTo(file))
+			{
+				throw new IOException("Failed to rename " + temp + " to " + file);
+			}
+			recordCount = records.size();
+			return true;
+		}
+		catch (IOException e)
+		{
+			Log.e(LOG_TAG, "Failed to rewrite " + file, e);
+			closeQuietly(stream);
+			temp.delete();
+			return false;
+		}
+	}
+
+	private void append(ByteArrayOutputStream payload) throws IOException
+	{
+		FileOutputStream stream = null;
+		long validLength = -1;
+		try
+		{
+			stream = new FileOutputStream(file, true);
+			validLength = stream.getChannel().size();
+			ByteArrayOutputStream record = new ByteArrayOutputStream(HEADER_SIZE + payload.size() + 4);
+			DataOutputStream out = new DataOutputStream(record);
+			if (validLength == 0)
+			{
+				// the file is gone or was never written: records without a header could not be replayed
+				out.writeInt(MAGIC);
+				out.writeByte(FORMAT_VERSION);
+			}
+			out.writeInt(payload.size());
+			payload.writeTo(record);
+			// the whole record goes out in a single write, so a crash can only tear the tail
+			record.writeTo(stream);
+			stream.getFD().sync();
+		}
+		catch (IOException e)
+		{
+			Log.e(LOG_TAG, "Failed to append to " + file, e);
+			if (validLength >= 0)
+			{
+				// a partial record left in place would hide every record appended after it
+				truncate(stream.getChannel(), validLength);
+			}
+			throw e;
+		}
+		finally
+		{
+			closeQuietly(stream);
+		}
+		recordCount++;
+		generation++;
+	}
+
+	private static ByteArrayOutputStream encodePut(String productId, String details,
+												   String signature) throws IOException
+	{
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeByte(OP_PUT);
+		writeString(out, productId);
+		writeString(out, details);
+		writeString(out, signature);
+		return payload;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private void truncate(FileChannel channel, long length)
+	{
+		try
+		{
+			channel.truncate(length);
+		}
+		catch (IOException e)
+		{
+			Log.e(LOG_TAG, "Failed to truncate " + file, e);
+		}
+	}
+
+	private void truncate(long length)
+	{
+		RandomAccessFile raf = null;
+		try
+		{
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(length);
+		}
+		catch (IOException e)
+		{
+			Log.e(LOG_TAG, "Failed to truncate " + file, e);
+		}
+		finally
+		{
+			closeQuietly(raf);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable)
+	{
+		if (closeable != null)
+		{
+			try
+			{
+				closeable.close();
+			}
+			catch (IOException ignored)
+			{
+			}
+		}
+	}
+}
@@ -22,6 +22,7 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -47,13 +48,18 @@ import com.android.billingclient.api.QueryProductDetailsResult;
 import com.android.billingclient.api.QueryPurchasesParams;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 public class BillingProcessor extends BillingBase {
     /**
@@ -88,10 +94,14 @@ public class BillingProcessor extends BillingBase {
     private static final String MANAGED_PRODUCTS_CACHE_KEY = ".products.cache" + SETTINGS_VERSION;
     private static final String SUBSCRIPTIONS_CACHE_KEY = ".subscriptions.cache" + SETTINGS_VERSION;
     private static final String PURCHASE_PAYLOAD_CACHE_KEY = ".purchase.last" + SETTINGS_VERSION;
+    private static final int VERDICT_CACHE_SIZE = 64;
+    private static final int INTERNED_STRINGS_LIMIT = 4096;
+    private static final int LISTING_CACHE_SIZE = 100;
+    private static final long LISTING_CACHE_TTL = TimeUnit.MINUTES.toMillis(30);
 
     private BillingClient billingClient;
     private String contextPackageName;
-    private String signatureBase64;
+    private final String signatureBase64;
     private BillingCache cachedProducts;
     private BillingCache cachedSubscriptions;
     private IBillingHandler eventHandler;
@@ -100,10 +110,34 @@ public class BillingProcessor extends BillingBase {
     private boolean isSubsUpdateSupported;
     private boolean isSubscriptionExtraParamsSupported;
     private boolean isOneTimePurchaseExtraParamsSupported;
+    private final VerificationCache verdicts = new VerificationCache(VERDICT_CACHE_SIZE);
+    // shared by every purchase this processor parses, so repeated fields are held once
+    private final StringInterner interner = new StringInterner(INTERNED_STRINGS_LIMIT);
+    private final ProductDetailsCache<CachedListing> listingDetails =
+            new ProductDetailsCache<>(LISTING_CACHE_SIZE, LISTING_CACHE_TTL);
+    private final ListingQueries<CachedListing> listingQueries = new ListingQueries<CachedListing>(listingDetails) {
+        @Override
+        protected void send(String type, List<String> productIds, Callback<CachedListing> answer) {
+            queryListingDetails(productIds, type, answer);
+        }
+
+        @Override
+        protected String getProductId(CachedListing listing) {
+            return listing.skuDetails.productId;
+        }
+
+        @Override
+        protected long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
 
     private class HistoryInitializationTask extends AsyncTask<Void, Void, Boolean> {
         @Override
         protected Boolean doInBackground(Void... nothing) {
+            // restoring writes to the caches, which wait for their initial load anyway; do the waiting here
+            cachedProducts.awaitLoaded(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            cachedSubscriptions.awaitLoaded(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
             if (!isPurchaseHistoryRestored()) {
                 loadOwnedPurchasesFromGoogle();
                 return true;
@@ -130,66 +164,280 @@ public class BillingProcessor extends BillingBase {
         public void onPurchasesUpdated(BillingResult billingResult, List<Purchase> list) {
             if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
                 if (list != null) {
-                    for (final Purchase purchase : list) {
-                        handlePurchase(purchase);
-                    }
+                    handlePurchases(list);
                 }
             }
         }
     };
 
-    private void handlePurchase(final Purchase purchase) {
-        if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
+    /**
+     * Receives the progress of {@link #scanCachedPurchases(IIntegrityScanListener)} on the main thread.
+     */
+    public interface IIntegrityScanListener {
+        void onIntegrityScanProgress(int verified, int total);
+
+        /**
+         * @param evicted       ids of the products and subscriptions that failed verification and
+         *                      were removed from the cache
+         * @param elapsedMillis how long the scan took, including the wait for the cache to load
+         */
+        void onIntegrityScanFinished(int total, @NonNull List<String> evicted, long elapsedMillis);
+    }
+
+    private class IntegrityScanTask extends AsyncTask<Void, Integer, List<String>> {
+        private static final int PROGRESS_STEP = 32;
+
+        private final IIntegrityScanListener listener;
+        private final long startTime = SystemClock.elapsedRealtime();
+        private int total;
+
+        IntegrityScanTask(IIntegrityScanListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        protected List<String> doInBackground(Void... nothing) {
+            Map<String, CachedPurchase> products = cachedProducts.getSnapshot();
+            Map<String, CachedPurchase> subscriptions = cachedSubscriptions.getSnapshot();
+            total = products.size() + subscriptions.size();
+            HashMap<String, CachedPurchase> failedProducts = new HashMap<>();
+            HashMap<String, CachedPurchase> failedSubscriptions = new HashMap<>();
+            int verified = verify(products, failedProducts, 0);
+            verify(subscriptions, failedSubscriptions, verified);
+            List<String> evicted = new ArrayList<>(cachedProducts.removeUnlessChanged(failedProducts));
+            evicted.addAll(cachedSubscriptions.removeUnlessChanged(failedSubscriptions));
+            return evicted;
+        }
+
+        private int verify(Map<String, CachedPurchase> entries, Map<String, CachedPurchase> failed, int verified) {
+            for (Map.Entry<String, CachedPurchase> entry : entries.entrySet()) {
+                CachedPurchase purchase = entry.getValue();
+                if (!verifyPurchaseSignature(entry.getKey(), purchase.responseData, purchase.signature)) {
+                    failed.put(entry.getKey(), purchase);
+                }
+                verified++;
+                if (verified % PROGRESS_STEP == 0) {
+                    publishProgress(verified);
+                }
+            }
+            return verified;
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... verified) {
+            if (listener != null) {
+                listener.onIntegrityScanProgress(verified[0], total);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(List<String> evicted) {
+            for (String productId : evicted) {
+                reportBillingError(Constants.BILLING_ERROR_INVALID_SIGNATURE,
+                        new SecurityException("Cached purchase of " + productId + " failed verification"));
+            }
+            if (listener != null) {
+                listener.onIntegrityScanFinished(total, evicted, SystemClock.elapsedRealtime() - startTime);
+            }
+        }
+    }
+
+    /**
+     * Verifies the owned purchases Play returned and replaces the cache with them in the
+     * background, then reports the outcome on the main thread.
+     */
+    private class RestorePurchasesTask extends AsyncTask<Void, Void, Integer> {
+        private final List<Purchase> purchases;
+        private final BillingCache cache;
+        private Exception failure;
+
+        RestorePurchasesTask(List<Purchase> purchases, BillingCache cache) {
+            this.purchases = purchases;
+            this.cache = cache;
+        }
+
+        /**
+         * @return how many purchases failed verification
+         */
+        @Override
+        protected Integer doInBackground(Void... nothing) {
             try {
-                // old code from handleActivityResult. Adds the purchase to the cache
-                String purchaseData = purchase.getOriginalJson();
-                String dataSignature = purchase.getSignature();
-                JSONObject purchaseJson = new JSONObject(purchaseData);
-                String productId = purchaseJson.getString(Constants.RESPONSE_PRODUCT_ID);
-                String purchaseType = detectPurchaseTypeFromPurchaseResponseData(purchaseJson);
-                BillingCache cache = purchaseType.equals(Constants.PRODUCT_TYPE_SUBSCRIPTION) ? cachedSubscriptions : cachedProducts;
-                if (verifyPurchaseSignature(productId, purchaseData, dataSignature)) {
-                    cache.put(productId, purchaseData, dataSignature);
-                } else {
-                    // invalid signature, bail out
-                    reportBillingError(Constants.BILLING_ERROR_INVALID_SIGNATURE, null);
-                    return;
+                // parse everything first, so a bad purchase leaves the cache untouched
+                List<Purchase> restored = new ArrayList<>();
+                List<PurchaseInfo> parsed = new ArrayList<>();
+                List<String> productIds = new ArrayList<>();
+                for (Purchase purchase : purchases) {
+                    if (!TextUtils.isEmpty(purchase.getOriginalJson())) {
+                        PurchaseInfo info = parsePurchase(purchase);
+                        productIds.add(info.purchaseData.productId);
+                        restored.add(purchase);
+                        parsed.add(info);
+                    }
                 }
-                // what does this do?
-                savePurchasePayload(null);
-
-                if (!purchase.isAcknowledged()) {
-                    // purchase not yet acknowledged
-                    AcknowledgePurchaseParams acknowledgePurchaseParams = AcknowledgePurchaseParams.newBuilder()
-                            .setPurchaseToken(purchase.getPurchaseToken())
-                            .build();
-                    billingClient.acknowledgePurchase(acknowledgePurchaseParams, new AcknowledgePurchaseResponseListener() {
-                        @Override
-                        public void onAcknowledgePurchaseResponse(@NonNull BillingResult billingResult) {
-                            if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                                if (eventHandler != null) {
-                                    TransactionDetails transactionDetails = getPurchaseTransactionDetails(productId, cache);
-                                    eventHandler.onProductPurchased(productId, transactionDetails);
-                                }
-                            } else {
-                                if (eventHandler != null) {
-                                    eventHandler.onBillingError(billingResult.getResponseCode(), new Throwable(billingResult.getDebugMessage()));
-                                }
-                            }
-                        }
-                    });
-                } else {
-                    // purchase already acknowledged
-                    if (eventHandler != null) {
-                        eventHandler.onProductPurchased(productId, new TransactionDetails(new PurchaseInfo(purchaseData, dataSignature)));
+                boolean[] verdicts = verifyPurchaseSignatures(productIds, restored);
+                HashMap<String, CachedPurchase> verified = new HashMap<>();
+                int invalid = 0;
+                for (int i = 0; i < restored.size(); i++) {
+                    if (verdicts[i]) {
+                        verified.put(productIds.get(i), new CachedPurchase(parsed.get(i)));
+                    } else {
+                        invalid++;
                     }
                 }
+                cache.replaceAll(verified);
+                return invalid;
+            } catch (Exception e) {
+                failure = e;
+                return 0;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer invalid) {
+            for (int i = 0; i < invalid; i++) {
+                reportBillingError(Constants.BILLING_ERROR_INVALID_SIGNATURE, null);
+            }
+            if (failure != null) {
+                reportBillingError(Constants.BILLING_ERROR_FAILED_LOAD_PURCHASES, failure);
+            }
+        }
+    }
+
+    private static class VerifiedPurchase {
+        final Purchase purchase;
+        final PurchaseInfo info;
+        final BillingCache cache;
+
+        VerifiedPurchase(Purchase purchase, PurchaseInfo info, BillingCache cache) {
+            this.purchase = purchase;
+            this.info = info;
+            this.cache = cache;
+        }
+    }
+
+    /**
+     * The details Play returned for a product, kept so that showing or buying it again does not
+     * need another query.
+     */
+    private static class CachedListing {
+        final SkuDetails skuDetails;
+        final ProductDetails productDetails;
+        // the subscription offer subscribe() buys, or null
+        final String offerToken;
+
+        CachedListing(ProductDetails productDetails) {
+            ProductDetails.SubscriptionOfferDetails offer = ProductDetailsMapper.selectSubscriptionOffer(productDetails);
+            this.skuDetails = ProductDetailsMapper.toSkuDetails(productDetails);
+            this.productDetails = productDetails;
+            this.offerToken = offer != null ? offer.getOfferToken() : null;
+        }
+    }
+
+    /**
+     * Parses a purchase once for all of its handling: verification, caching and callbacks
+     * all use the result.
+     */
+    private PurchaseInfo parsePurchase(Purchase purchase) throws JSONException {
+        PurchaseData data = PurchaseJsonParser.parsePurchaseData(purchase.getOriginalJson(), interner);
+        if (TextUtils.isEmpty(data.productId)) {
+            throw new JSONException("No value for " + Constants.RESPONSE_PRODUCT_ID);
+        }
+        return new PurchaseInfo(purchase.getOriginalJson(), purchase.getSignature(), data);
+    }
+
+    /**
+     * Verifies the purchases and adds them to the cache with one write per purchase type,
+     * then acknowledges each of them or reports it to the handler.
+     */
+    private void handlePurchases(List<Purchase> purchases) {
+        // old code from handleActivityResult. Adds the purchases to the cache
+        List<Purchase> purchased = new ArrayList<>();
+        List<PurchaseInfo> parsed = new ArrayList<>();
+        List<String> productIds = new ArrayList<>();
+        for (Purchase purchase : purchases) {
+            if (purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED) {
+                continue;
+            }
+            try {
+                PurchaseInfo info = parsePurchase(purchase);
+                productIds.add(info.purchaseData.productId);
+                purchased.add(purchase);
+                parsed.add(info);
+            } catch (Exception e) {
+                reportBillingError(Constants.BILLING_ERROR_OTHER_ERROR, e);
+            }
+        }
+        boolean[] verdicts = verifyPurchaseSignatures(productIds, purchased);
+
+        BillingCache.Editor products = cachedProducts.edit();
+        BillingCache.Editor subscriptions = cachedSubscriptions.edit();
+        List<VerifiedPurchase> verified = new ArrayList<>();
+        // the payload saved by purchase() belongs to the first purchase that gets through
+        String purchasePayload = getPurchasePayload();
+        for (int i = 0; i < purchased.size(); i++) {
+            if (!verdicts[i]) {
+                // invalid signature, bail out
+                reportBillingError(Constants.BILLING_ERROR_INVALID_SIGNATURE, null);
+                continue;
+            }
+            PurchaseInfo info = parsed.get(i);
+            String purchaseType = detectPurchaseTypeFromPurchaseResponseData(info.purchaseData, purchasePayload);
+            boolean isSubscription = purchaseType.equals(Constants.PRODUCT_TYPE_SUBSCRIPTION);
+            (isSubscription ? subscriptions : products).put(productIds.get(i), new CachedPurchase(info));
+            verified.add(new VerifiedPurchase(purchased.get(i), info,
+                    isSubscription ? cachedSubscriptions : cachedProducts));
+            purchasePayload = null;
+        }
+        if (verified.isEmpty()) {
+            return;
+        }
+        products.commit();
+        subscriptions.commit();
+        // what does this do?
+        savePurchasePayload(null);
+
+        for (VerifiedPurchase purchase : verified) {
+            try {
+                acknowledgePurchase(purchase);
             } catch (Exception e) {
                 reportBillingError(Constants.BILLING_ERROR_OTHER_ERROR, e);
             }
         }
     }
 
+    private void acknowledgePurchase(final VerifiedPurchase verified) {
+        final String productId = verified.info.purchaseData.productId;
+        Purchase purchase = verified.purchase;
+        if (!purchase.isAcknowledged()) {
+            // purchase not yet acknowledged
+            AcknowledgePurchaseParams acknowledgePurchaseParams = AcknowledgePurchaseParams.newBuilder()
+                    .setPurchaseToken(purchase.getPurchaseToken())
+                    .build();
+            billingClient.acknowledgePurchase(acknowledgePurchaseParams, new AcknowledgePurchaseResponseListener() {
+                @Override
+                public void onAcknowledgePurchaseResponse(@NonNull BillingResult billingResult) {
+                    if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                        if (eventHandler != null) {
+                            // null if the purchase left the cache while being acknowledged
+                            eventHandler.onProductPurchased(productId,
+                                    getPurchaseTransactionDetails(productId, verified.cache));
+                        }
+                    } else {
+                        if (eventHandler != null) {
+                            eventHandler.onBillingError(billingResult.getResponseCode(),
+                                    new Throwable(billingResult.getDebugMessage()));
+                        }
+                    }
+                }
+            });
+        } else {
+            // purchase already acknowledged
+            if (eventHandler != null) {
+                eventHandler.onProductPurchased(productId, new TransactionDetails(verified.info));
+            }
+        }
+    }
+
     /**
      * Returns a new {@link BillingProcessor}, without immediately binding to Play Services. If you use
      * this factory, then you must call {@link #initialize()} afterwards.
@@ -203,7 +451,20 @@ public class BillingProcessor extends BillingBase {
      * this factory, then you must call {@link #initialize()} afterwards.
      */
     public static BillingProcessor newBillingProcessor(Context context, String licenseKey, String merchantId, IBillingHandler handler) {
-        return new BillingProcessor(context, licenseKey, merchantId, handler, false);
+        return newBillingProcessor(context, licenseKey, merchantId, null, handler);
+    }
+
+    /**
+     * Returns a new {@link BillingProcessor} that keeps its state in the given storage, without
+     * immediately binding to Play Services. If you use this factory, then you must call
+     * {@link #initialize()} afterwards.
+     *
+     * @param storage where settings and cached purchases are kept, or null for
+     *                {@link SharedPreferencesBillingStorage}
+     */
+    public static BillingProcessor newBillingProcessor(Context context, String licenseKey, String merchantId,
+                                                       BillingStorage storage, IBillingHandler handler) {
+        return new BillingProcessor(context, licenseKey, merchantId, storage, handler, false);
     }
 
     public BillingProcessor(Context context, String licenseKey, IBillingHandler handler) {
@@ -211,16 +472,30 @@ public class BillingProcessor extends BillingBase {
     }
 
     public BillingProcessor(Context context, String licenseKey, String merchantId, IBillingHandler handler) {
-        this(context, licenseKey, merchantId, handler, true);
+        this(context, licenseKey, merchantId, null, handler);
     }
 
-    private BillingProcessor(Context context, String licenseKey, String merchantId, IBillingHandler handler, boolean bindImmediately) {
-        super(context.getApplicationContext());
+    /**
+     * @param storage where settings and cached purchases are kept, or null for
+     *                {@link SharedPreferencesBillingStorage}
+     */
+    public BillingProcessor(Context context, String licenseKey, String merchantId, BillingStorage storage,
+                            IBillingHandler handler) {
+        this(context, licenseKey, merchantId, storage, handler, true);
+    }
+
+    private BillingProcessor(Context context, String licenseKey, String merchantId, BillingStorage storage,
+                             IBillingHandler handler, boolean bindImmediately) {
+        super(context.getApplicationContext(), storage != null ? storage :
+                new SharedPreferencesBillingStorage(context.getApplicationContext()));
         signatureBase64 = licenseKey;
         eventHandler = handler;
         contextPackageName = getContext().getPackageName();
-        cachedProducts = new BillingCache(getContext(), MANAGED_PRODUCTS_CACHE_KEY);
-        cachedSubscriptions = new BillingCache(getContext(), SUBSCRIPTIONS_CACHE_KEY);
+        // the caches load on a background thread while Play Services are being bound
+        cachedProducts = new BillingCache(getContext(), getStorage(), MANAGED_PRODUCTS_CACHE_KEY,
+                AsyncTask.THREAD_POOL_EXECUTOR, interner);
+        cachedSubscriptions = new BillingCache(getContext(), getStorage(), SUBSCRIPTIONS_CACHE_KEY,
+                AsyncTask.THREAD_POOL_EXECUTOR, interner);
         developerMerchantId = merchantId;
         if (bindImmediately) {
             bindPlayServices();
@@ -258,7 +533,8 @@ public class BillingProcessor extends BillingBase {
                     if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
                         new HistoryInitializationTask().execute();
                     } else {
-                        reportBillingError(billingResult.getResponseCode(), new Throwable(billingResult.getDebugMessage()));
+                        reportBillingError(billingResult.getResponseCode(),
+                                new Throwable(billingResult.getDebugMessage()));
                     }
                 }
 
@@ -280,7 +556,38 @@ public class BillingProcessor extends BillingBase {
         return !list.isEmpty();
     }
 
+    /**
+     * Enables or disables write-behind persistence. When enabled, settings writes are kept in
+     * memory and committed from a single background thread, so repeated writes of the same key
+     * (e.g. during {@code handlePurchase}) cost one disk write instead of one each.
+     * Reads always see the latest value. Call {@link #flush()} when the state must be on disk
+     * before continuing; disabling write-behind flushes pending writes.
+     */
+    public synchronized void setWriteBehindEnabled(boolean enabled) {
+        BillingStorage previous = getStorage();
+        if (enabled == (previous instanceof WriteBehindStorage)) {
+            return;
+        }
+        BillingStorage storage = enabled
+                ? new WriteBehindStorage(previous)
+                : ((WriteBehindStorage) previous).getStorage();
+        // the caches share the storage, so each flushes the write-behind storage it drops
+        cachedProducts.setStorage(storage);
+        cachedSubscriptions.setStorage(storage);
+        setStorage(storage);
+    }
+
+    /**
+     * Blocks until every write issued so far is on disk.
+     *
+     * @see #setWriteBehindEnabled(boolean)
+     */
+    public void flush() {
+        getStorage().flush();
+    }
+
     public void release() {
+        flush();
         if (isInitialized() && billingClient != null) {
             try {
                 billingClient.endConnection();
@@ -295,14 +602,77 @@ public class BillingProcessor extends BillingBase {
         return billingClient != null;
     }
 
+    /**
+     * The cache of owned products and subscriptions is read from disk on a background thread
+     * after construction. Until that is done, {@link #isPurchased(String)} and the other cache
+     * accessors block; use this method, {@link #awaitCacheLoaded(long, TimeUnit)} or
+     * {@link #isPurchased(String, long, TimeUnit)} to avoid waiting on the main thread.
+     */
+    public boolean isCacheLoaded() {
+        return cachedProducts.isLoaded() && cachedSubscriptions.isLoaded();
+    }
+
+    /**
+     * Waits at most {@code timeout} for the cache of owned products and subscriptions to load.
+     *
+     * @return true if the cache is loaded, false if the timeout elapsed first
+     */
+    public boolean awaitCacheLoaded(long timeout, TimeUnit unit) {
+        long timeoutNanos = unit.toNanos(timeout);
+        long start = System.nanoTime();
+        return cachedProducts.awaitLoaded(timeoutNanos, TimeUnit.NANOSECONDS) &&
+                cachedSubscriptions.awaitLoaded(timeoutNanos - (System.nanoTime() - start), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Verifies the signature of every cached purchase again, on a low-priority background
+     * thread once the cache has loaded. Purchases that fail are removed from the cache and
+     * reported to {@link IBillingHandler#onBillingError(int, Throwable)} with
+     * {@link Constants#BILLING_ERROR_INVALID_SIGNATURE}. This catches entries that were
+     * tampered with on disk; without a License Key there is nothing to verify against.
+     *
+     * @param listener notified of progress and of the outcome, may be null
+     */
+    public void scanCachedPurchases(@Nullable IIntegrityScanListener listener) {
+        new IntegrityScanTask(listener).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
     public boolean isPurchased(String productId) {
         return cachedProducts.includesProduct(productId);
     }
 
+    /**
+     * Like {@link #isPurchased(String)}, but waits at most {@code timeout} for the cache to load.
+     *
+     * @return whether the product is owned, or null if the cache did not load in time
+     */
+    @Nullable
+    public Boolean isPurchased(String productId, long timeout, TimeUnit unit) {
+        return includesProduct(cachedProducts, productId, timeout, unit);
+    }
+
     public boolean isSubscribed(String productId) {
         return cachedSubscriptions.includesProduct(productId);
     }
 
+    /**
+     * Like {@link #isSubscribed(String)}, but waits at most {@code timeout} for the cache to load.
+     *
+     * @return whether the subscription is owned, or null if the cache did not load in time
+     */
+    @Nullable
+    public Boolean isSubscribed(String productId, long timeout, TimeUnit unit) {
+        return includesProduct(cachedSubscriptions, productId, timeout, unit);
+    }
+
+    @Nullable
+    private static Boolean includesProduct(BillingCache cache, String productId, long timeout, TimeUnit unit) {
+        if (!cache.awaitLoaded(timeout, unit)) {
+            return null;
+        }
+        return cache.includesProduct(productId);
+    }
+
     public List<String> listOwnedProducts() {
         return cachedProducts.getContents();
     }
@@ -330,25 +700,9 @@ public class BillingProcessor extends BillingBase {
         billingClient.queryPurchasesAsync(queryParams, new PurchasesResponseListener() {
             @Override
             public void onQueryPurchasesResponse(@NonNull BillingResult billingResult, @NonNull List<Purchase> list) {
-                try {
-                    if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                        cacheStorage.clear();
-                        ArrayList<Purchase> purchaseList = new ArrayList<>(list);
-                        if (!purchaseList.isEmpty()) {
-                            for (Purchase purchase : purchaseList) {
-                                String jsonData = purchase.getOriginalJson();
-                                String signature = purchase.getSignature();
-                                if (!TextUtils.isEmpty(jsonData)) {
-                                    JSONObject jsonObject = new JSONObject(jsonData);
-                                    cacheStorage.put(jsonObject.getString(Constants.RESPONSE_PRODUCT_ID),
-                                            jsonData,
-                                            signature);
-                                }
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    reportBillingError(Constants.BILLING_ERROR_FAILED_LOAD_PURCHASES, e);
+                if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                    // this runs on the main thread; verifying a large library would block it
+                    new RestorePurchasesTask(list, cacheStorage).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                 }
             }
         });
@@ -404,76 +758,80 @@ public class BillingProcessor extends BillingBase {
             }
             savePurchasePayload(purchasePayload);
 
-            List<QueryProductDetailsParams.Product> productList = new ArrayList<>();
-            productList.add(QueryProductDetailsParams.Product.newBuilder()
-                    .setProductId(productId)
-                    .setProductType(purchaseType)
-                    .build());
-
-            QueryProductDetailsParams params = QueryProductDetailsParams.newBuilder()
-                    .setProductList(productList)
-                    .build();
+            // fresh details from an earlier listing or purchase skip the query, and the flow launches right away
+            listingQueries.request(purchaseType, Collections.singletonList(productId), false,
+                    new ListingQueries.Callback<CachedListing>() {
+                        @Override
+                        public void onSuccess(List<CachedListing> listings) {
+                            if (!listings.isEmpty()) {
+                                launchPurchaseFlow(activity, productId, purchaseType, listings.get(0));
+                            } else {
+                                reportBillingError(Constants.BILLING_ERROR_INVALID_PRODUCT_ID, null);
+                            }
+                        }
 
-            billingClient.queryProductDetailsAsync(params, new ProductDetailsResponseListener() {
-                @Override
-                public void onProductDetailsResponse(@NonNull BillingResult billingResult, @NonNull QueryProductDetailsResult queryProductDetailsResult) {
-                    List<ProductDetails> detailsList = queryProductDetailsResult.getProductDetailsList();
-                    if (!detailsList.isEmpty()) {
-                        final ProductDetails details = detailsList.get(0);
-                        activity.runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                List<BillingFlowParams.ProductDetailsParams> productDetailsParamsList = new ArrayList<>();
-                                BillingFlowParams.ProductDetailsParams.Builder paramBuilder = BillingFlowParams.ProductDetailsParams.newBuilder()
-                                        .setProductDetails(details);
+                        @Override
+                        public void onFailure(Exception e) {
+                            reportBillingError(Constants.BILLING_ERROR_INVALID_PRODUCT_ID, e);
+                        }
+                    });
+        } catch (Exception e) {
+            reportBillingError(Constants.BILLING_ERROR_OTHER_ERROR, e);
+            return false;
+        }
+        return true;
+    }
 
-                                if (purchaseType.equals(Constants.PRODUCT_TYPE_SUBSCRIPTION) && details.getSubscriptionOfferDetails() != null && !details.getSubscriptionOfferDetails().isEmpty()) {
-                                    paramBuilder.setOfferToken(details.getSubscriptionOfferDetails().get(0).getOfferToken());
-                                }
+    /**
+     * Launches the billing flow for details already at hand, on the UI thread. Called from it,
+     * this launches right away.
+     */
+    private void launchPurchaseFlow(final Activity activity, final String productId, final String purchaseType,
+                                    final CachedListing listing) {
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                List<BillingFlowParams.ProductDetailsParams> productDetailsParamsList = new ArrayList<>();
+                BillingFlowParams.ProductDetailsParams.Builder paramBuilder = BillingFlowParams.ProductDetailsParams.newBuilder()
+                        .setProductDetails(listing.productDetails);
 
-                                productDetailsParamsList.add(paramBuilder.build());
+                if (purchaseType.equals(Constants.PRODUCT_TYPE_SUBSCRIPTION) && listing.offerToken != null) {
+                    paramBuilder.setOfferToken(listing.offerToken);
+                }
 
-                                BillingFlowParams billingFlowParams = BillingFlowParams.newBuilder()
-                                        .setProductDetailsParamsList(productDetailsParamsList)
-                                        .build();
+                productDetailsParamsList.add(paramBuilder.build());
 
-                                // attempt to launch billing flow
-                                int responseCode = billingClient.launchBillingFlow(activity, billingFlowParams).getResponseCode();
+                BillingFlowParams billingFlowParams = BillingFlowParams.newBuilder()
+                        .setProductDetailsParamsList(productDetailsParamsList)
+                        .build();
 
-                                // if item already owned reload purchases from google and update client
-                                if (responseCode == BillingClient.BillingResponseCode.ITEM_ALREADY_OWNED) {
-                                    if (!isPurchased(productId) && !isSubscribed(productId)) {
-                                        loadOwnedPurchasesFromGoogle();
-                                    }
-                                    TransactionDetails details = null;
-                                    if (purchaseType.equals(Constants.PRODUCT_TYPE_SUBSCRIPTION)) {
-                                        getSubscriptionTransactionDetails(productId);
-                                    } else {
-                                        getProductTransactionDetails(productId);
-                                    }
-                                    if (!checkMerchant(details)) {
-                                        reportBillingError(Constants.BILLING_ERROR_INVALID_MERCHANT_ID, null);
-                                    }
+                // attempt to launch billing flow
+                int responseCode = billingClient.launchBillingFlow(activity, billingFlowParams).getResponseCode();
 
-                                    if (eventHandler != null) {
-                                        if (details == null) {
-                                            details = getSubscriptionTransactionDetails(productId);
-                                        }
-                                        eventHandler.onProductPurchased(productId, details);
-                                    }
-                                }
-                            }
-                        });
+                // if item already owned reload purchases from google and update client
+                if (responseCode == BillingClient.BillingResponseCode.ITEM_ALREADY_OWNED) {
+                    if (!isPurchased(productId) && !isSubscribed(productId)) {
+                        loadOwnedPurchasesFromGoogle();
+                    }
+                    TransactionDetails details = null;
+                    if (purchaseType.equals(Constants.PRODUCT_TYPE_SUBSCRIPTION)) {
+                        getSubscriptionTransactionDetails(productId);
                     } else {
-                        reportBillingError(Constants.BILLING_ERROR_INVALID_PRODUCT_ID, null);
+                        getProductTransactionDetails(productId);
+                    }
+                    if (!checkMerchant(details)) {
+                        reportBillingError(Constants.BILLING_ERROR_INVALID_MERCHANT_ID, null);
+                    }
+
+                    if (eventHandler != null) {
+                        if (details == null) {
+                            details = getSubscriptionTransactionDetails(productId);
+                        }
+                        eventHandler.onProductPurchased(productId, details);
                     }
                 }
-            });
-        } catch (Exception e) {
-            reportBillingError(Constants.BILLING_ERROR_OTHER_ERROR, e);
-            return false;
-        }
-        return true;
+            }
+        });
     }
 
     /**
@@ -536,14 +894,17 @@ public class BillingProcessor extends BillingBase {
                             @Override
                             public void onConsumeResponse(BillingResult billingResult, @NonNull String purchaseToken) {
                                 if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                                    if (eventHandler != null) {
-                                        TransactionDetails transactionDetails = getProductTransactionDetails(fPurchase.getProducts().get(0));
-                                        cachedProducts.remove(transactionDetails.productId);
-                                        Log.d(LOG_TAG, "Successfully consumed " + transactionDetails.productId + " purchase.");
+                                    // a purchase may cover several products; they are all gone now
+                                    BillingCache.Editor editor = cachedProducts.edit();
+                                    for (String productId : fPurchase.getProducts()) {
+                                        editor.remove(productId);
                                     }
+                                    editor.commit();
+                                    Log.d(LOG_TAG, "Successfully consumed " + fPurchase.getProducts() + " purchase.");
                                 } else {
                                     if (eventHandler != null) {
-                                        eventHandler.onBillingError(billingResult.getResponseCode(), new Throwable(billingResult.getDebugMessage()));
+                                        eventHandler.onBillingError(billingResult.getResponseCode(),
+                                                new Throwable(billingResult.getDebugMessage()));
                                     }
                                 }
                             }
@@ -558,110 +919,213 @@ public class BillingProcessor extends BillingBase {
         }
     }
 
-    private void getSkuDetailsAsync(final ArrayList<String> productIdList, String purchaseType, final SuccessFailListener listener) {
+    /**
+     * Answers from the listing cache where it can and queries Play only for the rest. If every
+     * product is cached, the listener is called right away on the calling thread. Products that
+     * are already being queried for an earlier request are not queried again: this request waits
+     * for that answer instead.
+     */
+    private void getSkuDetailsAsync(final ArrayList<String> productIdList, final String purchaseType,
+                                    boolean forceRefresh, final SuccessFailListener listener) {
         if (billingClient == null) {
             listener.fail(new Exception("billing client is null"));
         } else if (productIdList == null || productIdList.size() <= 0) {
             listener.success(new ArrayList<>());
         } else {
-            List<QueryProductDetailsParams.Product> productList = new ArrayList<>();
-            for (String id : productIdList) {
-                productList.add(QueryProductDetailsParams.Product.newBuilder()
-                        .setProductId(id)
-                        .setProductType(purchaseType)
-                        .build());
-            }
-
-            QueryProductDetailsParams queryParams = QueryProductDetailsParams.newBuilder()
-                    .setProductList(productList)
-                    .build();
-
-            billingClient.queryProductDetailsAsync(queryParams, new ProductDetailsResponseListener() {
+            listingQueries.request(purchaseType, productIdList, forceRefresh, new ListingQueries.Callback<CachedListing>() {
                 @Override
-                public void onProductDetailsResponse(@NonNull BillingResult billingResult, @NonNull QueryProductDetailsResult queryProductDetailsResult) {
-                    try {
-                        ArrayList<SkuDetails> productDetails = new ArrayList<>();
-                        if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                            List<ProductDetails> detailsList = queryProductDetailsResult.getProductDetailsList();
-                            if (!detailsList.isEmpty()) {
-                                for (ProductDetails details : detailsList) {
-                                    JSONObject object = new JSONObject();
-                                    object.put("productId", details.getProductId());
-                                    object.put("type", details.getProductType());
-                                    object.put("title", details.getTitle());
-                                    object.put("description", details.getDescription());
-                                    SkuDetails product = new SkuDetails(object);
-                                    productDetails.add(product);
-                                }
-                            }
-                            if (listener != null) {
-                                listener.success(productDetails);
-                            }
-                        } else {
-                            throw new Exception("billing response code: " + billingResult.getResponseCode());
-                        }
-                    } catch (Exception e) {
-                        if (listener != null) {
-                            listener.fail(e);
+                public void onSuccess(List<CachedListing> listings) {
+                    if (listener != null) {
+                        ArrayList<SkuDetails> result = new ArrayList<>();
+                        for (CachedListing listing : listings) {
+                            result.add(listing.skuDetails);
                         }
+                        listener.success(result);
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    if (listener != null) {
+                        listener.fail(e);
                     }
                 }
             });
         }
     }
 
+    private void queryListingDetails(List<String> productIds, String purchaseType,
+                                     final ListingQueries.Callback<CachedListing> answer) {
+        List<QueryProductDetailsParams.Product> productList = new ArrayList<>();
+        for (String id : productIds) {
+            productList.add(QueryProductDetailsParams.Product.newBuilder()
+                    .setProductId(id)
+                    .setProductType(purchaseType)
+                    .build());
+        }
+
+        QueryProductDetailsParams queryParams = QueryProductDetailsParams.newBuilder()
+                .setProductList(productList)
+                .build();
+
+        billingClient.queryProductDetailsAsync(queryParams, new ProductDetailsResponseListener() {
+            @Override
+            public void onProductDetailsResponse(@NonNull BillingResult billingResult,
+                                                 @NonNull QueryProductDetailsResult queryProductDetailsResult) {
+                List<CachedListing> listings = new ArrayList<>();
+                try {
+                    if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                        throw new Exception("billing response code: " + billingResult.getResponseCode());
+                    }
+                    for (ProductDetails details : queryProductDetailsResult.getProductDetailsList()) {
+                        listings.add(new CachedListing(details));
+                    }
+                } catch (Exception e) {
+                    answer.onFailure(e);
+                    return;
+                }
+                answer.onSuccess(listings);
+            }
+        });
+    }
+
+    /**
+     * Sets how long product details fetched by the listing methods are reused, and how many are
+     * kept. The least recently used ones are dropped first. A {@code timeToLive} or {@code maxSize}
+     * of 0 turns the cache off. By default details are kept for 30 minutes, up to 100 of them.
+     */
+    public void setListingDetailsCachePolicy(long timeToLive, TimeUnit unit, int maxSize) {
+        listingDetails.setPolicy(maxSize, unit.toMillis(timeToLive));
+    }
+
+    /**
+     * Forgets all cached product details, so the next listing request asks Play again.
+     */
+    public void invalidateListingDetails() {
+        listingDetails.invalidateAll();
+    }
+
+    /**
+     * Forgets the cached details of one product or subscription.
+     */
+    public void invalidateListingDetails(String productId) {
+        listingDetails.invalidate(Constants.PRODUCT_TYPE_MANAGED, productId);
+        listingDetails.invalidate(Constants.PRODUCT_TYPE_SUBSCRIPTION, productId);
+    }
+
     public void getPurchaseListingDetails(String productId, SuccessFailListener listener) {
+        getPurchaseListingDetails(productId, false, listener);
+    }
+
+    /**
+     * @param forceRefresh ask Play even if the details are cached, and cache the answer
+     */
+    public void getPurchaseListingDetails(String productId, boolean forceRefresh, SuccessFailListener listener) {
         ArrayList<String> productIds = new ArrayList<>();
         productIds.add(productId);
-        getSkuDetailsAsync(productIds, Constants.PRODUCT_TYPE_MANAGED, listener);
+        getSkuDetailsAsync(productIds, Constants.PRODUCT_TYPE_MANAGED, forceRefresh, listener);
     }
 
     public void getPurchaseListingDetails(ArrayList<String> productIdList, SuccessFailListener listener) {
-        getSkuDetailsAsync(productIdList, Constants.PRODUCT_TYPE_MANAGED, listener);
+        getPurchaseListingDetails(productIdList, false, listener);
+    }
+
+    /**
+     * @param forceRefresh ask Play even if the details are cached, and cache the answer
+     */
+    public void getPurchaseListingDetails(ArrayList<String> productIdList, boolean forceRefresh,
+                                          SuccessFailListener listener) {
+        getSkuDetailsAsync(productIdList, Constants.PRODUCT_TYPE_MANAGED, forceRefresh, listener);
     }
 
     public void getSubscriptionListingDetails(String productId, SuccessFailListener listener) {
+        getSubscriptionListingDetails(productId, false, listener);
+    }
+
+    /**
+     * @param forceRefresh ask Play even if the details are cached, and cache the answer
+     */
+    public void getSubscriptionListingDetails(String productId, boolean forceRefresh, SuccessFailListener listener) {
         ArrayList<String> productIds = new ArrayList<>();
         productIds.add(productId);
-        getSkuDetailsAsync(productIds, Constants.PRODUCT_TYPE_SUBSCRIPTION, listener);
+        getSkuDetailsAsync(productIds, Constants.PRODUCT_TYPE_SUBSCRIPTION, forceRefresh, listener);
     }
 
     public void getSubscriptionListingDetails(ArrayList<String> productIdList, SuccessFailListener listener) {
-        getSkuDetailsAsync(productIdList, Constants.PRODUCT_TYPE_SUBSCRIPTION, listener);
+        getSubscriptionListingDetails(productIdList, false, listener);
     }
 
+    /**
+     * @param forceRefresh ask Play even if the details are cached, and cache the answer
+     */
+    public void getSubscriptionListingDetails(ArrayList<String> productIdList, boolean forceRefresh,
+                                              SuccessFailListener listener) {
+        getSkuDetailsAsync(productIdList, Constants.PRODUCT_TYPE_SUBSCRIPTION, forceRefresh, listener);
+    }
+
+    /**
+     * @return the details of a cached purchase. Until the purchase changes, every call returns the
+     * same instance, so it is cheap to call often. The instance is shared, and so is its
+     * {@link PurchaseData}, whose fields can be written to: a change made by one caller is seen
+     * by every later one. Copy the values you need to modify.
+     */
     @Nullable
     public TransactionDetails getProductTransactionDetails(String productId) {
         return getPurchaseTransactionDetails(productId, cachedProducts);
     }
 
+    /**
+     * @see #getProductTransactionDetails(String)
+     */
     @Nullable
     public TransactionDetails getSubscriptionTransactionDetails(String productId) {
         return getPurchaseTransactionDetails(productId, cachedSubscriptions);
     }
 
     @Nullable
-    private TransactionDetails getPurchaseTransactionDetails(String productId, BillingCache cache) {
-        PurchaseInfo details = cache.getDetails(productId);
-        if (details != null && !TextUtils.isEmpty(details.responseData)) {
-            return new TransactionDetails(details);
+    private static TransactionDetails getPurchaseTransactionDetails(String productId, BillingCache cache) {
+        TransactionDetails details = cache.getTransactionDetails(productId);
+        if (details != null && !TextUtils.isEmpty(details.purchaseInfo.responseData)) {
+            return details;
         }
         return null;
     }
 
-    private String detectPurchaseTypeFromPurchaseResponseData(JSONObject purchase) {
-        String purchasePayload = getPurchasePayload();
+    private String detectPurchaseTypeFromPurchaseResponseData(PurchaseData purchase, String purchasePayload) {
         // regular flow, based on developer payload
         if (!TextUtils.isEmpty(purchasePayload) && purchasePayload.startsWith(Constants.PRODUCT_TYPE_SUBSCRIPTION)) {
             return Constants.PRODUCT_TYPE_SUBSCRIPTION;
         }
         // backup check for the promo codes (no payload available)
-        if (purchase != null && purchase.has(Constants.RESPONSE_AUTO_RENEWING)) {
+        if (purchase != null && purchase.hasAutoRenewing) {
             return Constants.PRODUCT_TYPE_SUBSCRIPTION;
         }
         return Constants.PRODUCT_TYPE_MANAGED;
     }
 
+    /**
+     * Verifies the signatures of many purchases in parallel.
+     *
+     * @param productIds the product id of each purchase
+     * @return one verdict per purchase, in input order
+     */
+    private boolean[] verifyPurchaseSignatures(List<String> productIds, List<Purchase> purchases) {
+        boolean[] verdicts = new boolean[purchases.size()];
+        if (TextUtils.isEmpty(signatureBase64)) {
+            // same as verifyPurchaseSignature(): without a License Key the check is skipped
+            Arrays.fill(verdicts, true);
+            return verdicts;
+        }
+        String[] purchaseData = new String[purchases.size()];
+        String[] dataSignatures = new String[purchases.size()];
+        for (int i = 0; i < purchases.size(); i++) {
+            purchaseData[i] = purchases.get(i).getOriginalJson();
+            dataSignatures[i] = purchases.get(i).getSignature();
+        }
+        return Security.verifyPurchases(signatureBase64, productIds.toArray(new String[0]),
+                purchaseData, dataSignatures);
+    }
+
     private boolean verifyPurchaseSignature(String productId, String purchaseData, String dataSignature) {
         try {
             /*
@@ -675,11 +1139,23 @@ public class BillingProcessor extends BillingBase {
         }
     }
 
+    /**
+     * Verifies the signature and the merchant of the transaction. Verdicts are remembered, so
+     * checking the same transaction again is a lookup.
+     */
     public boolean isValidTransactionDetails(TransactionDetails transactionDetails) {
-        return verifyPurchaseSignature(transactionDetails.purchaseInfo.purchaseData.productId,
-                transactionDetails.purchaseInfo.responseData,
-                transactionDetails.purchaseInfo.signature) &&
-                checkMerchant(transactionDetails);
+        PurchaseInfo purchaseInfo = transactionDetails.purchaseInfo;
+        ByteBuffer key = VerificationCache.keyFor(purchaseInfo.responseData, purchaseInfo.signature,
+                signatureBase64, developerMerchantId);
+        Boolean verdict = verdicts.get(key);
+        if (verdict == null) {
+            verdict = verifyPurchaseSignature(purchaseInfo.purchaseData.productId,
+                    purchaseInfo.responseData,
+                    purchaseInfo.signature) &&
+                    checkMerchant(transactionDetails);
+            verdicts.put(key, verdict);
+        }
+        return verdict;
     }
 
     private boolean isPurchaseHistoryRestored() {
@@ -712,7 +1188,9 @@ public class BillingProcessor extends BillingBase {
      *                    {@value Constants#PRODUCT_TYPE_SUBSCRIPTION}
      * @param extraParams a Bundle with extra params that would be appended into http request
      *                    query string. Not used at this moment. Reserved for future functionality.
-     * @return @NotNull list of billing history records
+     * @return @NotNull list of billing history records. Records whose signature does not match the
+     * License Key are left out and reported to {@link IBillingHandler#onBillingError(int, Throwable)}
+     * with {@link Constants#BILLING_ERROR_INVALID_SIGNATURE}.
      * @throws BillingCommunicationException if billing isn't connected or there was an error during request execution
      */
     public List<BillingHistoryRecord> getPurchaseHistory(String type, Bundle extraParams) throws BillingCommunicationException {
@@ -741,15 +1219,26 @@ public class BillingProcessor extends BillingBase {
                 });
 
                 if (purchaseResult[0] != null && purchaseResult[0].getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                    if (!purchaseList.isEmpty()) {
-                        for (Purchase purchase : purchaseList) {
-                            String jsonData = purchase.getOriginalJson();
-                            String signature = purchase.getSignature();
-
-                            if (!TextUtils.isEmpty(jsonData) && !TextUtils.isEmpty(signature)) {
-                                BillingHistoryRecord record = new BillingHistoryRecord(jsonData, signature);
-                                result.add(record);
-                            }
+                    List<Purchase> signed = new ArrayList<>();
+                    List<BillingHistoryRecord> records = new ArrayList<>();
+                    List<String> productIds = new ArrayList<>();
+                    for (Purchase purchase : purchaseList) {
+                        String jsonData = purchase.getOriginalJson();
+                        String signature = purchase.getSignature();
+
+                        if (!TextUtils.isEmpty(jsonData) && !TextUtils.isEmpty(signature)) {
+                            BillingHistoryRecord record = new BillingHistoryRecord(jsonData, signature, interner);
+                            signed.add(purchase);
+                            records.add(record);
+                            productIds.add(record.productId);
+                        }
+                    }
+                    boolean[] verdicts = verifyPurchaseSignatures(productIds, signed);
+                    for (int i = 0; i < records.size(); i++) {
+                        if (verdicts[i]) {
+                            result.add(records.get(i));
+                        } else {
+                            reportBillingError(Constants.BILLING_ERROR_INVALID_SIGNATURE, null);
                         }
                     }
                 }
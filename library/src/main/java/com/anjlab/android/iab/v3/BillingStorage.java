@@ -0,0 +1,84 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Where a {@link BillingProcessor} keeps its state: a handful of small key/value settings and
+ * the journals of cached purchases.
+ * <p>
+ * Implementations must be safe to call from any thread. The library ships
+ * {@link SharedPreferencesBillingStorage} (the default), {@link FileBillingStorage} and
+ * {@link InMemoryBillingStorage}.
+ */
+public interface BillingStorage
+{
+    String getString(String key, @Nullable String defValue);
+
+    /**
+     * @param value new value, or null to remove the key
+     */
+    void putString(String key, @Nullable String value);
+
+    boolean getBoolean(String key, boolean defValue);
+
+    void putBoolean(String key, boolean value);
+
+    void remove(String key);
+
+    /**
+     * Writes several settings together. Storages that can write them in one go, rather than
+     * one at a time, should override this; by default each is written on its own.
+     *
+     * @param values new values by key: a String, a Boolean, or null to remove the key
+     */
+    default void putAll(Map<String, ?> values)
+    {
+        for (Map.Entry<String, ?> entry : values.entrySet())
+        {
+            Object value = entry.getValue();
+            if (value == null)
+            {
+                remove(entry.getKey());
+            }
+            else if (value instanceof Boolean)
+            {
+                putBoolean(entry.getKey(), (Boolean) value);
+            }
+            else
+            {
+                putString(entry.getKey(), (String) value);
+            }
+        }
+    }
+
+    /**
+     * Blocks until every write issued so far is durable. Storages that write synchronously
+     * can leave this empty.
+     */
+    void flush();
+
+    /**
+     * @return directory for the purchase cache journals, or null to keep cached purchases
+     * in memory only
+     */
+    @Nullable
+    File getCacheDirectory();
+}
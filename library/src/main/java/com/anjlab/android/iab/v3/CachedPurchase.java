@@ -0,0 +1,92 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.text.TextUtils;
+
+/**
+ * Entry of a {@link BillingCache}. Holds the purchase as it was stored and parses it into a
+ * {@link PurchaseInfo} the first time it is asked for, so loading a cache costs no JSON
+ * parsing and checking whether a product is owned never parses at all.
+ */
+class CachedPurchase
+{
+	final String responseData;
+	final String signature;
+	private volatile PurchaseInfo purchaseInfo;
+	private volatile TransactionDetails transactionDetails;
+
+	CachedPurchase(String responseData, String signature)
+	{
+		this.responseData = responseData;
+		this.signature = signature;
+	}
+
+	/**
+	 * For a purchase that was already parsed, so the cache never parses it again.
+	 */
+	CachedPurchase(PurchaseInfo purchaseInfo)
+	{
+		this(purchaseInfo.responseData, purchaseInfo.signature);
+		this.purchaseInfo = purchaseInfo;
+	}
+
+	/**
+	 * @return true if {@code other} holds the same response data and signature
+	 */
+	boolean isSameAs(CachedPurchase other)
+	{
+		return other != null && TextUtils.equals(responseData, other.responseData) &&
+				TextUtils.equals(signature, other.signature);
+	}
+
+	/**
+	 * @param interner used only if the purchase has not been parsed yet; may be null
+	 */
+	PurchaseInfo getPurchaseInfo(StringInterner interner)
+	{
+		PurchaseInfo result = purchaseInfo;
+		if (result == null)
+		{
+			// PurchaseInfo has only final fields, so a racing thread at worst parses it a second time
+			result = new PurchaseInfo(responseData, signature, interner);
+			purchaseInfo = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the same instance on every call, or null if the purchase could not be parsed. A
+	 * changed purchase gets a new entry, and with it new details. The instance is handed to
+	 * every caller as is; its PurchaseData is not copied.
+	 */
+	TransactionDetails getTransactionDetails(StringInterner interner)
+	{
+		TransactionDetails result = transactionDetails;
+		if (result == null)
+		{
+			PurchaseInfo info = getPurchaseInfo(interner);
+			if (info.purchaseData == null)
+			{
+				return null;
+			}
+			// as with the PurchaseInfo, a racing thread at worst builds a second, equal instance
+			result = new TransactionDetails(info);
+			transactionDetails = result;
+		}
+		return result;
+	}
+}
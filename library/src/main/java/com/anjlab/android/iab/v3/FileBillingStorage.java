@@ -0,0 +1,249 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps settings in a dedicated file instead of the app's default SharedPreferences, so billing
+ * writes neither rewrite nor wait on preferences that the rest of the app uses. Purchase
+ * journals go next to it.
+ * <p>
+ * The file is read once, on first access. Every write replaces it atomically, so changes that
+ * belong together should go through {@link #putAll(Map)} to be written in one go.
+ */
+public class FileBillingStorage implements BillingStorage
+{
+    private static final String LOG_TAG = "iabv3.storage";
+    private static final String FILE_NAME = "iabv3.storage";
+    private static final int FORMAT_VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_BOOLEAN = 1;
+
+    private final AtomicFile file;
+    private final File cacheDirectory;
+    private SharedPreferences legacyPreferences;
+    private String legacyKeyPrefix;
+    private HashMap<String, Object> values;
+
+    /**
+     * Uses {@code iabv3.storage} in {@link Context#getFilesDir()}. The first time the file is
+     * created, settings the library kept in the default SharedPreferences are copied over.
+     */
+    public FileBillingStorage(Context context)
+    {
+        this(new File(context.getFilesDir(), FILE_NAME), context.getFilesDir());
+        legacyPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        legacyKeyPrefix = context.getPackageName() + "_preferences";
+    }
+
+    public FileBillingStorage(File file, File cacheDirectory)
+    {
+        this.file = new AtomicFile(file);
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue)
+    {
+        Object value = getValues().get(key);
+        return value instanceof String ? (String) value : defValue;
+    }
+
+    @Override
+    public void putString(String key, String value)
+    {
+        putAll(Collections.singletonMap(key, value));
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue)
+    {
+        Object value = getValues().get(key);
+        return value instanceof Boolean ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value)
+    {
+        putAll(Collections.singletonMap(key, value));
+    }
+
+    @Override
+    public void remove(String key)
+    {
+        putAll(Collections.singletonMap(key, null));
+    }
+
+    @Override
+    public synchronized void putAll(Map<String, ?> changes)
+    {
+        HashMap<String, Object> current = getValues();
+        boolean changed = false;
+        for (Map.Entry<String, ?> entry : changes.entrySet())
+        {
+            Object value = entry.getValue();
+            Object previous = value != null ? current.put(entry.getKey(), value) : current.remove(entry.getKey());
+            changed |= value != null ? !value.equals(previous) : previous != null;
+        }
+        if (changed)
+        {
+            write();
+        }
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public File getCacheDirectory()
+    {
+        return cacheDirectory;
+    }
+
+    private HashMap<String, Object> getValues()
+    {
+        if (values == null)
+        {
+            values = new HashMap<>();
+            try
+            {
+                read();
+            }
+            catch (FileNotFoundException e)
+            {
+                importLegacyPreferences();
+            }
+            catch (IOException e)
+            {
+                Log.e(LOG_TAG, "Failed to read " + file.getBaseFile(), e);
+                values.clear();
+            }
+        }
+        return values;
+    }
+
+    private void read() throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(file.readFully()));
+        if (in.readInt() != FORMAT_VERSION)
+        {
+            throw new IOException("Unsupported format");
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++)
+        {
+            String key = in.readUTF();
+            if (in.readByte() == TYPE_BOOLEAN)
+            {
+                values.put(key, in.readBoolean());
+            }
+            else
+            {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                values.put(key, new String(bytes, UTF_8));
+            }
+        }
+    }
+
+    private void importLegacyPreferences()
+    {
+        if (legacyPreferences == null)
+        {
+            return;
+        }
+        for (Map.Entry<String, ?> entry : legacyPreferences.getAll().entrySet())
+        {
+            Object value = entry.getValue();
+            if (entry.getKey().startsWith(legacyKeyPrefix) &&
+                    (value instanceof String || value instanceof Boolean))
+            {
+                values.put(entry.getKey(), value);
+            }
+        }
+        if (!values.isEmpty() && write())
+        {
+            // the file holds them now, so they no longer need to live in the app's preferences
+            SharedPreferences.Editor editor = legacyPreferences.edit();
+            for (String key : values.keySet())
+            {
+                editor.remove(key);
+            }
+            editor.commit();
+        }
+    }
+
+    private boolean write()
+    {
+        FileOutputStream stream = null;
+        try
+        {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(values.size());
+            for (Map.Entry<String, Object> entry : values.entrySet())
+            {
+                out.writeUTF(entry.getKey());
+                if (entry.getValue() instanceof Boolean)
+                {
+                    out.writeByte(TYPE_BOOLEAN);
+                    out.writeBoolean((Boolean) entry.getValue());
+                }
+                else
+                {
+                    byte[] bytes = ((String) entry.getValue()).getBytes(UTF_8);
+                    out.writeByte(TYPE_STRING);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            out.flush();
+            file.finishWrite(stream);
+            return true;
+        }
+        catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Failed to write " + file.getBaseFile(), e);
+            if (stream != null)
+            {
+                file.failWrite(stream);
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps everything in memory and never touches the disk. Useful for tests and benchmarks;
+ * all state, including cached purchases, is lost with the process.
+ */
+public class InMemoryBillingStorage implements BillingStorage
+{
+    private final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<>();
+
+    @Override
+    public String getString(String key, String defValue)
+    {
+        Object value = values.get(key);
+        return value instanceof String ? (String) value : defValue;
+    }
+
+    @Override
+    public void putString(String key, String value)
+    {
+        if (value == null)
+        {
+            values.remove(key);
+        }
+        else
+        {
+            values.put(key, value);
+        }
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue)
+    {
+        Object value = values.get(key);
+        return value instanceof Boolean ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value)
+    {
+        values.put(key, value);
+    }
+
+    @Override
+    public void remove(String key)
+    {
+        values.remove(key);
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public File getCacheDirectory()
+    {
+        return null;
+    }
+}
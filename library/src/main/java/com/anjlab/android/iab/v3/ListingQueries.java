@@ -0,0 +1,239 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers listing requests from a {@link ProductDetailsCache} and queries only what it lacks.
+ * A product that is already being queried for an earlier request is not queried again: the later
+ * request waits for that answer instead. Answers are cached before their query stops being
+ * tracked, so a concurrent request finds every product either cached or in flight.
+ */
+abstract class ListingQueries<V>
+{
+	interface Callback<V>
+	{
+		/**
+		 * @param values the values found, in the order they were requested
+		 */
+		void onSuccess(List<V> values);
+
+		void onFailure(Exception e);
+	}
+
+	/**
+	 * A listing request, answered once every query it waits on has completed.
+	 */
+	private final class Request
+	{
+		final List<String> productIds;
+		final Callback<V> callback;
+		final Map<String, V> found = new HashMap<>();
+		int pendingQueries;
+		Exception failure;
+
+		Request(List<String> productIds, Callback<V> callback)
+		{
+			this.productIds = productIds;
+			this.callback = callback;
+		}
+
+		void finish()
+		{
+			if (failure != null)
+			{
+				callback.onFailure(failure);
+				return;
+			}
+			List<V> values = new ArrayList<>();
+			for (String productId : new LinkedHashSet<>(productIds))
+			{
+				V value = found.get(productId);
+				if (value != null)
+				{
+					values.add(value);
+				}
+			}
+			callback.onSuccess(values);
+		}
+	}
+
+	/**
+	 * A query that was sent, and the requests waiting for its answer.
+	 */
+	private final class Query
+	{
+		final String type;
+		final List<String> keys = new ArrayList<>();
+		final List<Request> waiting = new ArrayList<>();
+		boolean completed;
+
+		Query(String type)
+		{
+			this.type = type;
+		}
+	}
+
+	private final ProductDetailsCache<V> cache;
+	// queries sent and not answered yet, by product type and id
+	private final Map<String, Query> inFlight = new HashMap<>();
+
+	ListingQueries(ProductDetailsCache<V> cache)
+	{
+		this.cache = cache;
+	}
+
+	/**
+	 * Queries the given products. {@code answer} must be called once, on any thread. If this
+	 * throws instead, the query fails with the exception.
+	 */
+	protected abstract void send(String type, List<String> productIds, Callback<V> answer) throws Exception;
+
+	protected abstract String getProductId(V value);
+
+	/**
+	 * @return the current time, in the milliseconds the cache expects
+	 */
+	protected abstract long now();
+
+	/**
+	 * Calls {@code callback} right away, on the calling thread, if every product is cached and
+	 * {@code forceRefresh} is false. Otherwise it is called once the queries it waits on complete.
+	 *
+	 * @param forceRefresh skip the cache; products already in flight still wait for that answer
+	 */
+	void request(String type, List<String> productIds, boolean forceRefresh, Callback<V> callback)
+	{
+		Request request = new Request(productIds, callback);
+		final Query query = new Query(type);
+		List<String> missing = new ArrayList<>();
+		boolean answered;
+		long now = now();
+		synchronized (inFlight)
+		{
+			for (String productId : new LinkedHashSet<>(productIds))
+			{
+				V cached = forceRefresh ? null : cache.get(type, productId, now);
+				if (cached != null)
+				{
+					request.found.put(productId, cached);
+					continue;
+				}
+				String key = keyFor(type, productId);
+				Query pending = inFlight.get(key);
+				if (pending == null)
+				{
+					pending = query;
+					query.keys.add(key);
+					inFlight.put(key, query);
+					missing.add(productId);
+				}
+				if (!pending.waiting.contains(request))
+				{
+					pending.waiting.add(request);
+					request.pendingQueries++;
+				}
+			}
+			// read under the lock: once attached, the request may finish on another thread
+			answered = request.pendingQueries == 0;
+		}
+		if (answered)
+		{
+			request.finish();
+			return;
+		}
+		if (!missing.isEmpty())
+		{
+			try
+			{
+				send(type, missing, new Callback<V>()
+				{
+					@Override
+					public void onSuccess(List<V> values)
+					{
+						complete(query, values, null);
+					}
+
+					@Override
+					public void onFailure(Exception e)
+					{
+						complete(query, Collections.<V>emptyList(), e);
+					}
+				});
+			}
+			catch (Exception e)
+			{
+				// otherwise the products would stay in flight and every later request would hang
+				complete(query, Collections.<V>emptyList(), e);
+			}
+		}
+	}
+
+	private void complete(Query query, List<V> values, Exception failure)
+	{
+		List<Request> finished = new ArrayList<>();
+		synchronized (inFlight)
+		{
+			if (query.completed)
+			{
+				return;
+			}
+			query.completed = true;
+			long fetchedAt = now();
+			for (V value : values)
+			{
+				cache.put(query.type, getProductId(value), value, fetchedAt);
+			}
+			for (String key : query.keys)
+			{
+				inFlight.remove(key);
+			}
+			for (Request request : query.waiting)
+			{
+				if (failure != null)
+				{
+					request.failure = failure;
+				}
+				else
+				{
+					for (V value : values)
+					{
+						request.found.put(getProductId(value), value);
+					}
+				}
+				if (--request.pendingQueries == 0)
+				{
+					finished.add(request);
+				}
+			}
+		}
+		for (Request request : finished)
+		{
+			request.finish();
+		}
+	}
+
+	private static String keyFor(String type, String productId)
+	{
+		return type + ':' + productId;
+	}
+}
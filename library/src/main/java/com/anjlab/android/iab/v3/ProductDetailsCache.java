@@ -0,0 +1,120 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Product details fetched from Play, by product type and id, so that showing the same
+ * listing again does not cost another query. Entries expire {@code timeToLive} milliseconds
+ * after they were fetched, and the least recently used one is evicted once there are more than
+ * {@code maxSize}. Times are passed in by the caller, in {@code SystemClock.elapsedRealtime()}
+ * milliseconds.
+ */
+class ProductDetailsCache<V>
+{
+	private static final class Entry<V>
+	{
+		final V value;
+		final long fetchedAt;
+
+		Entry(V value, long fetchedAt)
+		{
+			this.value = value;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	private final LinkedHashMap<String, Entry<V>> entries;
+	private int maxSize;
+	private long timeToLive;
+
+	ProductDetailsCache(int maxSize, long timeToLive)
+	{
+		this.maxSize = maxSize;
+		this.timeToLive = timeToLive;
+		entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest)
+			{
+				return size() > ProductDetailsCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Applies to entries already cached too. A {@code timeToLive} or {@code maxSize} of 0 turns
+	 * caching off.
+	 */
+	synchronized void setPolicy(int maxSize, long timeToLive)
+	{
+		this.maxSize = maxSize;
+		this.timeToLive = timeToLive;
+		if (maxSize <= 0 || timeToLive <= 0)
+		{
+			entries.clear();
+			return;
+		}
+		while (entries.size() > maxSize)
+		{
+			entries.remove(entries.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * @return the cached value, or null if there is none or it has expired
+	 */
+	synchronized V get(String type, String productId, long now)
+	{
+		String key = keyFor(type, productId);
+		Entry<V> entry = entries.get(key);
+		if (entry == null)
+		{
+			return null;
+		}
+		if (now - entry.fetchedAt >= timeToLive)
+		{
+			entries.remove(key);
+			return null;
+		}
+		return entry.value;
+	}
+
+	synchronized void put(String type, String productId, V value, long now)
+	{
+		if (maxSize > 0 && timeToLive > 0)
+		{
+			entries.put(keyFor(type, productId), new Entry<>(value, now));
+		}
+	}
+
+	synchronized void invalidate(String type, String productId)
+	{
+		entries.remove(keyFor(type, productId));
+	}
+
+	synchronized void invalidateAll()
+	{
+		entries.clear();
+	}
+
+	private static String keyFor(String type, String productId)
+	{
+		return type + ':' + productId;
+	}
+}
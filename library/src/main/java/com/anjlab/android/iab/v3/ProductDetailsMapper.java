@@ -0,0 +1,100 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import com.android.billingclient.api.ProductDetails;
+
+import java.util.List;
+
+/**
+ * Builds {@link SkuDetails} straight from the Play Billing Library's {@link ProductDetails},
+ * including one-time and subscription pricing.
+ */
+final class ProductDetailsMapper
+{
+    private ProductDetailsMapper()
+    {
+    }
+
+    static SkuDetails toSkuDetails(ProductDetails details)
+    {
+        SkuDetails.Values values = new SkuDetails.Values();
+        values.productId = nonNull(details.getProductId());
+        values.title = nonNull(details.getTitle());
+        values.description = nonNull(details.getDescription());
+        values.isSubscription = Constants.PRODUCT_TYPE_SUBSCRIPTION.equalsIgnoreCase(details.getProductType());
+
+        if (values.isSubscription)
+        {
+            ProductDetails.SubscriptionOfferDetails offer = selectSubscriptionOffer(details);
+            List<ProductDetails.PricingPhase> phases = offer != null && offer.getPricingPhases() != null
+                    ? offer.getPricingPhases().getPricingPhaseList() : null;
+            if (phases != null)
+            {
+                for (ProductDetails.PricingPhase phase : phases)
+                {
+                    if (phase.getRecurrenceMode() == ProductDetails.RecurrenceMode.INFINITE_RECURRING)
+                    {
+                        // the base plan price every offer ends with
+                        values.currency = nonNull(phase.getPriceCurrencyCode());
+                        values.priceLong = phase.getPriceAmountMicros();
+                        values.priceText = nonNull(phase.getFormattedPrice());
+                        values.subscriptionPeriod = nonNull(phase.getBillingPeriod());
+                    }
+                    else if (phase.getPriceAmountMicros() == 0)
+                    {
+                        values.subscriptionFreeTrialPeriod = nonNull(phase.getBillingPeriod());
+                    }
+                    else
+                    {
+                        values.introductoryPriceLong = phase.getPriceAmountMicros();
+                        values.introductoryPriceText = nonNull(phase.getFormattedPrice());
+                        values.introductoryPricePeriod = nonNull(phase.getBillingPeriod());
+                        values.introductoryPriceCycles =
+                                phase.getRecurrenceMode() == ProductDetails.RecurrenceMode.NON_RECURRING
+                                        ? 1 : phase.getBillingCycleCount();
+                    }
+                }
+            }
+        }
+        else
+        {
+            ProductDetails.OneTimePurchaseOfferDetails offer = details.getOneTimePurchaseOfferDetails();
+            if (offer != null)
+            {
+                values.currency = nonNull(offer.getPriceCurrencyCode());
+                values.priceLong = offer.getPriceAmountMicros();
+                values.priceText = nonNull(offer.getFormattedPrice());
+            }
+        }
+
+        return new SkuDetails(values);
+    }
+
+    /**
+     * @return the offer a subscription is bought with, or null if there is none
+     */
+    static ProductDetails.SubscriptionOfferDetails selectSubscriptionOffer(ProductDetails details)
+    {
+        List<ProductDetails.SubscriptionOfferDetails> offers = details.getSubscriptionOfferDetails();
+        return offers != null && !offers.isEmpty() ? offers.get(0) : null;
+    }
+
+    private static String nonNull(String value)
+    {
+        return value != null ? value : "";
+    }
+}
@@ -20,6 +20,10 @@ import android.os.Parcelable;
 
 import java.util.Date;
 
+/**
+ * The fields of a purchase. Instances that come from the purchase cache are shared by every
+ * caller, so they should be read, not written to.
+ */
 public class PurchaseData implements Parcelable
 {
     public String orderId;
@@ -31,6 +35,12 @@ public class PurchaseData implements Parcelable
     public String purchaseToken;
     public boolean autoRenewing;
 
+    /**
+     * Whether the JSON had an autoRenewing key at all, which only subscriptions have.
+     * Known only right after parsing; it is not parcelled.
+     */
+    boolean hasAutoRenewing;
+
     @Override
     public int describeContents()
     {
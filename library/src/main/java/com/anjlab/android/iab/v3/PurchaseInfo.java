@@ -21,9 +21,6 @@ import android.os.Parcelable;
 import android.util.Log;
 
 import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.util.Date;
 
 /**
  * With this PurchaseInfo a developer is able verify
@@ -36,15 +33,40 @@ public class PurchaseInfo implements Parcelable
 {
     private static final String LOG_TAG = "iabv3.purchaseInfo";
 
+    /**
+     * Version of the layout written by {@link #writeToParcel(Parcel, int)}: the version, the raw
+     * response data and signature, then the already parsed {@link PurchaseData}, so reading it
+     * back needs no JSON parsing. Bump it whenever the layout changes.
+     */
+    private static final int PARCEL_VERSION = 2;
+
     public final String responseData;
     public final String signature;
     public final PurchaseData purchaseData;
 
     public PurchaseInfo(String responseData, String signature)
+    {
+        this(responseData, signature, (StringInterner) null);
+    }
+
+    /**
+     * @param interner canonicalizes the purchase fields that repeat across purchases, or null
+     */
+    PurchaseInfo(String responseData, String signature, StringInterner interner)
     {
         this.responseData = responseData;
         this.signature = signature;
-        this.purchaseData = parseResponseDataImpl();
+        this.purchaseData = parseResponseData(responseData, interner);
+    }
+
+    /**
+     * For purchases that were already parsed.
+     */
+    PurchaseInfo(String responseData, String signature, PurchaseData purchaseData)
+    {
+        this.responseData = responseData;
+        this.signature = signature;
+        this.purchaseData = purchaseData;
     }
 
     /**
@@ -57,21 +79,15 @@ public class PurchaseInfo implements Parcelable
     }
 
     PurchaseData parseResponseDataImpl()
+    {
+        return parseResponseData(responseData, null);
+    }
+
+    private static PurchaseData parseResponseData(String responseData, StringInterner interner)
     {
         try
         {
-            JSONObject json = new JSONObject(responseData);
-            PurchaseData data = new PurchaseData();
-            data.orderId = json.optString(Constants.RESPONSE_ORDER_ID);
-            data.packageName = json.optString(Constants.RESPONSE_PACKAGE_NAME);
-            data.productId = json.optString(Constants.RESPONSE_PRODUCT_ID);
-            long purchaseTimeMillis = json.optLong(Constants.RESPONSE_PURCHASE_TIME, 0);
-            data.purchaseTime = purchaseTimeMillis != 0 ? new Date(purchaseTimeMillis) : null;
-            data.purchaseState = PurchaseState.values()[json.optInt(Constants.RESPONSE_PURCHASE_STATE, 1)];
-            data.developerPayload = json.optString(Constants.RESPONSE_DEVELOPER_PAYLOAD);
-            data.purchaseToken = json.getString(Constants.RESPONSE_PURCHASE_TOKEN);
-            data.autoRenewing = json.optBoolean(Constants.RESPONSE_AUTO_RENEWING);
-            return data;
+            return PurchaseJsonParser.parsePurchaseData(responseData, interner);
         }
         catch (JSONException e)
         {
@@ -89,15 +105,26 @@ public class PurchaseInfo implements Parcelable
     @Override
     public void writeToParcel(Parcel dest, int flags)
     {
+        dest.writeInt(PARCEL_VERSION);
         dest.writeString(this.responseData);
         dest.writeString(this.signature);
+        dest.writeByte(purchaseData != null ? (byte) 1 : (byte) 0);
+        if (purchaseData != null)
+        {
+            purchaseData.writeToParcel(dest, flags);
+        }
     }
 
     protected PurchaseInfo(Parcel in)
     {
+        int version = in.readInt();
+        if (version != PARCEL_VERSION)
+        {
+            throw new IllegalArgumentException("Unsupported PurchaseInfo parcel version " + version);
+        }
         this.responseData = in.readString();
         this.signature = in.readString();
-        this.purchaseData = parseResponseDataImpl();
+        this.purchaseData = in.readByte() != 0 ? PurchaseData.CREATOR.createFromParcel(in) : null;
     }
 
     public static final Parcelable.Creator<PurchaseInfo> CREATOR =
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Date;
+
+/**
+ * Reads the few fields the library needs from purchase JSON in a single pass, without building
+ * a {@link org.json.JSONObject}. Unknown keys are skipped.
+ * <p>
+ * Values are coerced the way {@code JSONObject.opt*} does: numbers are accepted as strings and
+ * vice versa, and a value of the wrong type or {@code null} counts as missing.
+ */
+final class PurchaseJsonParser
+{
+    private PurchaseJsonParser()
+    {
+    }
+
+    static PurchaseData parsePurchaseData(String json) throws JSONException
+    {
+        return parsePurchaseData(json, null);
+    }
+
+    /**
+     * @param interner canonicalizes the fields that repeat across purchases, or null
+     * @throws JSONException if the JSON is malformed or has no purchase token
+     */
+    static PurchaseData parsePurchaseData(String json, StringInterner interner) throws JSONException
+    {
+        String orderId = "";
+        String packageName = "";
+        String productId = "";
+        long purchaseTimeMillis = 0;
+        int purchaseState = 1;
+        String developerPayload = "";
+        String purchaseToken = null;
+        boolean autoRenewing = false;
+        boolean hasAutoRenewing = false;
+
+        JsonReader reader = new JsonReader(new StringReader(json));
+        try
+        {
+            reader.beginObject();
+            while (reader.hasNext())
+            {
+                switch (reader.nextName())
+                {
+                    case Constants.RESPONSE_ORDER_ID:
+                        orderId = readString(reader, "");
+                        break;
+                    case Constants.RESPONSE_PACKAGE_NAME:
+                        packageName = readString(reader, "");
+                        break;
+                    case Constants.RESPONSE_PRODUCT_ID:
+                        productId = readString(reader, "");
+                        break;
+                    case Constants.RESPONSE_PURCHASE_TIME:
+                        purchaseTimeMillis = readLong(reader, 0);
+                        break;
+                    case Constants.RESPONSE_PURCHASE_STATE:
+                        purchaseState = (int) readLong(reader, 1);
+                        break;
+                    case Constants.RESPONSE_DEVELOPER_PAYLOAD:
+                        developerPayload = readString(reader, "");
+                        break;
+                    case Constants.RESPONSE_PURCHASE_TOKEN:
+                        purchaseToken = readString(reader, null);
+                        break;
+                    case Constants.RESPONSE_AUTO_RENEWING:
+                        autoRenewing = readBoolean(reader);
+                        hasAutoRenewing = true;
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        }
+        catch (IOException | IllegalStateException e)
+        {
+            throw newException(e);
+        }
+        finally
+        {
+            close(reader);
+        }
+        if (purchaseToken == null)
+        {
+            throw new JSONException("No value for " + Constants.RESPONSE_PURCHASE_TOKEN);
+        }
+
+        PurchaseData data = new PurchaseData();
+        data.orderId = orderId;
+        data.packageName = intern(interner, packageName);
+        data.productId = intern(interner, productId);
+        data.purchaseTime = purchaseTimeMillis != 0 ? new Date(purchaseTimeMillis) : null;
+        data.purchaseState = PurchaseState.values()[purchaseState];
+        data.developerPayload = intern(interner, developerPayload);
+        data.purchaseToken = purchaseToken;
+        data.autoRenewing = autoRenewing;
+        data.hasAutoRenewing = hasAutoRenewing;
+        return data;
+    }
+
+    static String intern(StringInterner interner, String value)
+    {
+        return interner != null ? interner.intern(value) : value;
+    }
+
+    static String readString(JsonReader reader, String fallback) throws IOException
+    {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER)
+        {
+            return reader.nextString();
+        }
+        if (token == JsonToken.BOOLEAN)
+        {
+            return String.valueOf(reader.nextBoolean());
+        }
+        reader.skipValue();
+        return fallback;
+    }
+
+    private static long readLong(JsonReader reader, long fallback) throws IOException
+    {
+        Long value = readLong(reader);
+        return value != null ? value : fallback;
+    }
+
+    static Long readLong(JsonReader reader) throws IOException
+    {
+        JsonToken token = reader.peek();
+        if (token != JsonToken.STRING && token != JsonToken.NUMBER)
+        {
+            reader.skipValue();
+            return null;
+        }
+        String value = reader.nextString();
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            try
+            {
+                return (long) Double.parseDouble(value);
+            }
+            catch (NumberFormatException notANumber)
+            {
+                return null;
+            }
+        }
+    }
+
+    private static boolean readBoolean(JsonReader reader) throws IOException
+    {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BOOLEAN)
+        {
+            return reader.nextBoolean();
+        }
+        if (token == JsonToken.STRING)
+        {
+            return "true".equalsIgnoreCase(reader.nextString());
+        }
+        reader.skipValue();
+        return false;
+    }
+
+    static void requireValue(Object value, String name) throws JSONException
+    {
+        if (value == null)
+        {
+            throw new JSONException("No value for " + name);
+        }
+    }
+
+    static JSONException newException(Exception cause)
+    {
+        JSONException exception = new JSONException(cause.getMessage());
+        exception.initCause(cause);
+        return exception;
+    }
+
+    static void close(JsonReader reader)
+    {
+        try
+        {
+            reader.close();
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+}
@@ -19,6 +19,7 @@ import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
@@ -27,6 +28,15 @@ import java.security.Signature;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Security-related methods. For a secure implementation, all of this code
@@ -44,6 +54,190 @@ class Security
     private static final String KEY_FACTORY_ALGORITHM = "RSA";
     private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
 
+    private static final int VERIFICATION_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int MIN_PURCHASES_PER_THREAD = 8;
+
+    private static final ThreadPoolExecutor VERIFICATION_EXECUTOR = new ThreadPoolExecutor(
+            VERIFICATION_THREADS, VERIFICATION_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "iabv3-verifier");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static
+    {
+        // threads only live while a batch is being verified
+        VERIFICATION_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The last decoded license key. Apps use a single key, so one entry is all it takes to
+     * avoid decoding it again for every purchase.
+     */
+    private static volatile CachedKey cachedKey;
+
+    private static final ThreadLocal<Verifier> VERIFIERS = new ThreadLocal<Verifier>()
+    {
+        @Override
+        protected Verifier initialValue()
+        {
+            try
+            {
+                return new Verifier(Signature.getInstance(SIGNATURE_ALGORITHM));
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                return null;
+            }
+        }
+    };
+
+    private static final class CachedKey
+    {
+        final String encodedKey;
+        final PublicKey publicKey;
+
+        CachedKey(String encodedKey, PublicKey publicKey)
+        {
+            this.encodedKey = encodedKey;
+            this.publicKey = publicKey;
+        }
+    }
+
+    /**
+     * A {@link Signature} kept per thread. It stays initialized with the key it last verified
+     * against, since {@link Signature#verify(byte[])} resets it to that state.
+     */
+    private static final class Verifier
+    {
+        private static final int INITIAL_DATA_CAPACITY = 1024;
+        private static final int INITIAL_SIGNATURE_CAPACITY = 256;
+        private static final byte[] BASE64_VALUES = new byte[128];
+
+        static
+        {
+            Arrays.fill(BASE64_VALUES, (byte) -1);
+            String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+            for (int i = 0; i < alphabet.length(); i++)
+            {
+                BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+            }
+        }
+
+        final Signature signature;
+        PublicKey key;
+        private ByteBuffer data = ByteBuffer.allocate(INITIAL_DATA_CAPACITY);
+        private byte[] decodedSignature = new byte[INITIAL_SIGNATURE_CAPACITY];
+
+        Verifier(Signature signature)
+        {
+            this.signature = signature;
+        }
+
+        /**
+         * Encodes the string as UTF-8 into a buffer that is reused by the next call.
+         * Unpaired surrogates become '?', as with {@link String#getBytes(String)}.
+         */
+        ByteBuffer encode(String value)
+        {
+            int length = value.length();
+            // no char takes more than three bytes; a surrogate pair takes four for two chars
+            if (data.capacity() < length * 3)
+            {
+                data = ByteBuffer.allocate(Math.max(length * 3, data.capacity() * 2));
+            }
+            ByteBuffer out = data;
+            out.clear();
+            for (int i = 0; i < length; i++)
+            {
+                char c = value.charAt(i);
+                if (c < 0x80)
+                {
+                    out.put((byte) c);
+                }
+                else if (c < 0x800)
+                {
+                    out.put((byte) (0xc0 | c >> 6));
+                    out.put((byte) (0x80 | c & 0x3f));
+                }
+                else if (Character.isHighSurrogate(c) && i + 1 < length &&
+                        Character.isLowSurrogate(value.charAt(i + 1)))
+                {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    out.put((byte) (0xf0 | codePoint >> 18));
+                    out.put((byte) (0x80 | codePoint >> 12 & 0x3f));
+                    out.put((byte) (0x80 | codePoint >> 6 & 0x3f));
+                    out.put((byte) (0x80 | codePoint & 0x3f));
+                }
+                else if (Character.isSurrogate(c))
+                {
+                    out.put((byte) '?');
+                }
+                else
+                {
+                    out.put((byte) (0xe0 | c >> 12));
+                    out.put((byte) (0x80 | c >> 6 & 0x3f));
+                    out.put((byte) (0x80 | c & 0x3f));
+                }
+            }
+            out.flip();
+            return out;
+        }
+
+        /**
+         * Decodes Base64 into {@link #decodedSignature}. Like {@link Base64#decode(String, int)},
+         * characters outside the alphabet are skipped and decoding stops at the first '='.
+         *
+         * @return the number of decoded bytes
+         * @throws IllegalArgumentException if the input ends in the middle of a byte
+         */
+        int decode(String value)
+        {
+            int capacity = value.length() * 3 / 4;
+            if (decodedSignature.length < capacity)
+            {
+                decodedSignature = new byte[capacity];
+            }
+            byte[] out = decodedSignature;
+            int length = 0;
+            int bits = 0;
+            int bitCount = 0;
+            int digits = 0;
+            for (int i = 0; i < value.length(); i++)
+            {
+                char c = value.charAt(i);
+                if (c == '=')
+                {
+                    break;
+                }
+                int digit = c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+                if (digit < 0)
+                {
+                    continue;
+                }
+                digits++;
+                bits = bits << 6 | digit;
+                bitCount += 6;
+                if (bitCount >= 8)
+                {
+                    bitCount -= 8;
+                    out[length++] = (byte) (bits >> bitCount);
+                }
+            }
+            if (digits % 4 == 1)
+            {
+                throw new IllegalArgumentException("bad base-64");
+            }
+            return length;
+        }
+    }
+
     /**
      * Verifies that the data was signed with the given signature, and returns
      * the verified purchase. The data is in JSON format and signed
@@ -76,10 +270,106 @@ class Security
             return false;
         }
 
-        PublicKey key = Security.generatePublicKey(base64PublicKey);
+        PublicKey key = Security.getPublicKey(base64PublicKey);
         return Security.verify(key, signedData, signature);
     }
 
+    /**
+     * Verifies several purchases at once, spreading them over one thread per available core.
+     * Short lists are verified on the calling thread, where a thread hand-off would cost more
+     * than it saves. All arrays must have the same length.
+     *
+     * @return one verdict per purchase, in input order; see
+     * {@link #verifyPurchase(String, String, String, String)}
+     */
+    static boolean[] verifyPurchases(final String base64PublicKey, final String[] productIds,
+                                     final String[] signedData, final String[] signatures)
+    {
+        final boolean[] verdicts = new boolean[productIds.length];
+        int chunkCount = Math.min(VERIFICATION_THREADS, productIds.length / MIN_PURCHASES_PER_THREAD);
+        if (chunkCount <= 1)
+        {
+            verifyRange(base64PublicKey, productIds, signedData, signatures, verdicts, 0, productIds.length);
+            return verdicts;
+        }
+        int chunkSize = (productIds.length + chunkCount - 1) / chunkCount;
+        List<Future<?>> futures = new ArrayList<>(chunkCount - 1);
+        for (int start = chunkSize; start < productIds.length; start += chunkSize)
+        {
+            final int from = start;
+            final int to = Math.min(start + chunkSize, productIds.length);
+            futures.add(VERIFICATION_EXECUTOR.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    verifyRange(base64PublicKey, productIds, signedData, signatures, verdicts, from, to);
+                }
+            }));
+        }
+        // the calling thread takes the first chunk instead of idling
+        verifyRange(base64PublicKey, productIds, signedData, signatures, verdicts, 0, chunkSize);
+        boolean interrupted = false;
+        for (Future<?> future : futures)
+        {
+            while (true)
+            {
+                try
+                {
+                    future.get();
+                    break;
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException e)
+                {
+                    // verifyRange() catches everything, so this is unexpected; the chunk stays unverified
+                    Log.e(TAG, "Batch verification failed.", e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return verdicts;
+    }
+
+    private static void verifyRange(String base64PublicKey, String[] productIds, String[] signedData,
+                                    String[] signatures, boolean[] verdicts, int from, int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            try
+            {
+                verdicts[i] = verifyPurchase(productIds[i], base64PublicKey, signedData[i], signatures[i]);
+            }
+            catch (RuntimeException e)
+            {
+                verdicts[i] = false;
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #generatePublicKey(String)}, but decodes a given key only once.
+     *
+     * @throws IllegalArgumentException if encodedPublicKey is invalid
+     */
+    static PublicKey getPublicKey(String encodedPublicKey)
+    {
+        CachedKey cached = cachedKey;
+        if (cached == null || !cached.encodedKey.equals(encodedPublicKey))
+        {
+            cached = new CachedKey(encodedPublicKey, generatePublicKey(encodedPublicKey));
+            cachedKey = cached;
+        }
+        return cached.publicKey;
+    }
+
     /**
      * Generates a PublicKey instance from a string containing the
      * Base64-encoded public key.
@@ -122,23 +412,30 @@ class Security
      */
     public static boolean verify(PublicKey publicKey, String signedData, String signature)
     {
-        Signature sig;
+        Verifier verifier = VERIFIERS.get();
+        if (verifier == null)
+        {
+            Log.e(TAG, "NoSuchAlgorithmException.");
+            return false;
+        }
         try
         {
-            sig = Signature.getInstance(SIGNATURE_ALGORITHM);
-            sig.initVerify(publicKey);
-            sig.update(signedData.getBytes());
-            if (!sig.verify(Base64.decode(signature, Base64.DEFAULT)))
+            Signature sig = verifier.signature;
+            if (verifier.key != publicKey)
+            {
+                sig.initVerify(publicKey);
+                verifier.key = publicKey;
+            }
+            // reuses per-thread buffers, so verifying many purchases allocates next to nothing
+            sig.update(verifier.encode(signedData));
+            int signatureLength = verifier.decode(signature);
+            if (!sig.verify(verifier.decodedSignature, 0, signatureLength))
             {
                 Log.e(TAG, "Signature verification failed.");
                 return false;
             }
             return true;
         }
-        catch (NoSuchAlgorithmException e)
-        {
-            Log.e(TAG, "NoSuchAlgorithmException.");
-        }
         catch (InvalidKeyException e)
         {
             Log.e(TAG, "Invalid key specification.");
@@ -151,6 +448,8 @@ class Security
         {
             Log.e(TAG, "Base64 decoding failed.");
         }
+        // the signature may be left with partial input; initialize it again next time
+        verifier.key = null;
         return false;
     }
 }
\ No newline at end of file
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Keeps settings in the app's default {@link SharedPreferences}, as the library always has,
+ * and purchase journals in {@link Context#getFilesDir()}. Every write is committed before
+ * it returns.
+ */
+public class SharedPreferencesBillingStorage implements BillingStorage
+{
+    private final SharedPreferences preferences;
+    private final File cacheDirectory;
+
+    public SharedPreferencesBillingStorage(Context context)
+    {
+        this(PreferenceManager.getDefaultSharedPreferences(context), context.getFilesDir());
+    }
+
+    public SharedPreferencesBillingStorage(SharedPreferences preferences, File cacheDirectory)
+    {
+        this.preferences = preferences;
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    @Override
+    public String getString(String key, String defValue)
+    {
+        return preferences.getString(key, defValue);
+    }
+
+    @Override
+    public void putString(String key, String value)
+    {
+        preferences.edit().putString(key, value).commit();
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue)
+    {
+        return preferences.getBoolean(key, defValue);
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value)
+    {
+        preferences.edit().putBoolean(key, value).commit();
+    }
+
+    @Override
+    public void remove(String key)
+    {
+        preferences.edit().remove(key).commit();
+    }
+
+    /**
+     * SharedPreferences rewrites its whole file on every commit, so the values go out in one.
+     */
+    @Override
+    public void putAll(Map<String, ?> values)
+    {
+        SharedPreferences.Editor editor = preferences.edit();
+        for (Map.Entry<String, ?> entry : values.entrySet())
+        {
+            Object value = entry.getValue();
+            if (value == null)
+            {
+                editor.remove(entry.getKey());
+            }
+            else if (value instanceof Boolean)
+            {
+                editor.putBoolean(entry.getKey(), (Boolean) value);
+            }
+            else
+            {
+                editor.putString(entry.getKey(), (String) value);
+            }
+        }
+        editor.commit();
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public File getCacheDirectory()
+    {
+        return cacheDirectory;
+    }
+}
@@ -21,6 +21,7 @@ import android.text.TextUtils;
 
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONStringer;
 
 import java.util.Locale;
 
@@ -97,6 +98,85 @@ public class SkuDetails implements Parcelable
         responseData = source.toString();
     }
 
+    /**
+     * For details that are not read from JSON; the derived fields are computed from the given
+     * ones, and {@link #responseData} is written out from them directly, without building a
+     * {@link JSONObject} first.
+     */
+    SkuDetails(Values values)
+    {
+        this.productId = values.productId;
+        this.title = values.title;
+        this.description = values.description;
+        this.isSubscription = values.isSubscription;
+        this.currency = values.currency;
+        this.priceLong = values.priceLong;
+        this.priceValue = values.priceLong / 1000000d;
+        this.priceText = values.priceText;
+        this.subscriptionPeriod = values.subscriptionPeriod;
+        this.subscriptionFreeTrialPeriod = values.subscriptionFreeTrialPeriod;
+        this.haveTrialPeriod = !TextUtils.isEmpty(values.subscriptionFreeTrialPeriod);
+        this.introductoryPriceLong = values.introductoryPriceLong;
+        this.introductoryPriceValue = values.introductoryPriceLong / 1000000d;
+        this.introductoryPriceText = values.introductoryPriceText;
+        this.introductoryPricePeriod = values.introductoryPricePeriod;
+        this.haveIntroductoryPeriod = !TextUtils.isEmpty(values.introductoryPricePeriod);
+        this.introductoryPriceCycles = values.introductoryPriceCycles;
+        this.responseData = writeJson();
+    }
+
+    /**
+     * @return the details in the format {@link #SkuDetails(JSONObject)} reads
+     */
+    private String writeJson()
+    {
+        try
+        {
+            return new JSONStringer().object()
+                    .key(Constants.RESPONSE_PRODUCT_ID).value(productId)
+                    .key(Constants.RESPONSE_TYPE)
+                    .value(isSubscription ? Constants.PRODUCT_TYPE_SUBSCRIPTION : Constants.PRODUCT_TYPE_MANAGED)
+                    .key(Constants.RESPONSE_TITLE).value(title)
+                    .key(Constants.RESPONSE_DESCRIPTION).value(description)
+                    .key(Constants.RESPONSE_PRICE_CURRENCY).value(currency)
+                    .key(Constants.RESPONSE_PRICE_MICROS).value(priceLong)
+                    .key(Constants.RESPONSE_PRICE).value(priceText)
+                    .key(Constants.RESPONSE_SUBSCRIPTION_PERIOD).value(subscriptionPeriod)
+                    .key(Constants.RESPONSE_FREE_TRIAL_PERIOD).value(subscriptionFreeTrialPeriod)
+                    .key(Constants.RESPONSE_INTRODUCTORY_PRICE_MICROS).value(introductoryPriceLong)
+                    .key(Constants.RESPONSE_INTRODUCTORY_PRICE).value(introductoryPriceText)
+                    .key(Constants.RESPONSE_INTRODUCTORY_PRICE_PERIOD).value(introductoryPricePeriod)
+                    .key(Constants.RESPONSE_INTRODUCTORY_PRICE_CYCLES).value(introductoryPriceCycles)
+                    .endObject()
+                    .toString();
+        }
+        catch (JSONException e)
+        {
+            // only thrown for non-finite numbers and unbalanced objects, and there are neither here
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The fields {@link SkuDetails} is built from when they don't come from JSON.
+     */
+    static final class Values
+    {
+        String productId = "";
+        String title = "";
+        String description = "";
+        boolean isSubscription;
+        String currency = "";
+        long priceLong;
+        String priceText = "";
+        String subscriptionPeriod = "";
+        String subscriptionFreeTrialPeriod = "";
+        long introductoryPriceLong;
+        String introductoryPriceText = "";
+        String introductoryPricePeriod = "";
+        int introductoryPriceCycles;
+    }
+
     @Override
     public String toString()
     {
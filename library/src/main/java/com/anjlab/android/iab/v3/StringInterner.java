@@ -0,0 +1,63 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Canonicalizes strings that repeat across purchases, such as package names, product ids and
+ * developer payloads, so that parsed purchases share one copy of each instead of holding their
+ * own. Strings are held weakly and are dropped once no purchase refers to them. Once
+ * {@code capacity} distinct strings are held, new ones are returned as they are.
+ */
+class StringInterner
+{
+	private final int capacity;
+	private final WeakHashMap<String, WeakReference<String>> strings = new WeakHashMap<>();
+
+	StringInterner(int capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the canonical instance equal to {@code value}, or {@code value} itself
+	 */
+	synchronized String intern(String value)
+	{
+		if (value == null)
+		{
+			return null;
+		}
+		WeakReference<String> reference = strings.get(value);
+		String canonical = reference != null ? reference.get() : null;
+		if (canonical != null)
+		{
+			return canonical;
+		}
+		if (strings.size() < capacity)
+		{
+			strings.put(value, new WeakReference<>(value));
+		}
+		return value;
+	}
+
+	synchronized int size()
+	{
+		return strings.size();
+	}
+}
@@ -50,6 +50,13 @@ public class TransactionDetails implements Parcelable
 
 	public final PurchaseInfo purchaseInfo;
 
+	/**
+	 * Version of the layout written by {@link #writeToParcel(Parcel, int)}: the version followed by
+	 * the purchase info written in place, without the class name and creator lookup of
+	 * {@link Parcel#writeParcelable(Parcelable, int)}. Bump it whenever the layout changes.
+	 */
+	private static final int PARCEL_VERSION = 2;
+
 	public TransactionDetails(PurchaseInfo info)
 	{
 		purchaseInfo = info;
@@ -102,12 +109,18 @@ public class TransactionDetails implements Parcelable
 	@Override
 	public void writeToParcel(Parcel dest, int flags)
 	{
-		dest.writeParcelable(this.purchaseInfo, flags);
+		dest.writeInt(PARCEL_VERSION);
+		this.purchaseInfo.writeToParcel(dest, flags);
 	}
 
 	protected TransactionDetails(Parcel in)
 	{
-		this.purchaseInfo = in.readParcelable(PurchaseInfo.class.getClassLoader());
+		int version = in.readInt();
+		if (version != PARCEL_VERSION)
+		{
+			throw new IllegalArgumentException("Unsupported TransactionDetails parcel version " + version);
+		}
+		this.purchaseInfo = PurchaseInfo.CREATOR.createFromParcel(in);
 		this.productId = purchaseInfo.purchaseData.productId;
 		this.orderId = purchaseInfo.purchaseData.orderId;
 		this.purchaseToken = purchaseInfo.purchaseData.purchaseToken;
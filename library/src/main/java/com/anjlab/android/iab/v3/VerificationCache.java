@@ -0,0 +1,110 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the outcome of verifying a purchase, so checking the same transaction again
+ * costs a digest and a lookup instead of an RSA verification.
+ * <p>
+ * Verdicts are keyed by a SHA-256 digest of everything they depend on: the purchase data,
+ * its signature, the license key and the merchant id. Changing any of them therefore never
+ * matches a verdict made with the old value, so nothing has to be dropped when they change;
+ * stale verdicts simply age out, the least recently used first.
+ */
+class VerificationCache
+{
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>()
+	{
+		@Override
+		protected MessageDigest initialValue()
+		{
+			try
+			{
+				return MessageDigest.getInstance(DIGEST_ALGORITHM);
+			}
+			catch (NoSuchAlgorithmException e)
+			{
+				// every platform is required to support SHA-256
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final LinkedHashMap<ByteBuffer, Boolean> verdicts;
+
+	VerificationCache(final int capacity)
+	{
+		verdicts = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest)
+			{
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return the verdict for the given inputs, or null if there is none
+	 */
+	synchronized Boolean get(ByteBuffer key)
+	{
+		return verdicts.get(key);
+	}
+
+	synchronized void put(ByteBuffer key, boolean verdict)
+	{
+		verdicts.put(key, verdict);
+	}
+
+	/**
+	 * Digests the inputs of a verification into a key for {@link #get(ByteBuffer)}.
+	 */
+	static ByteBuffer keyFor(String responseData, String signature, String licenseKey, String merchantId)
+	{
+		MessageDigest digest = DIGESTS.get();
+		update(digest, responseData);
+		update(digest, signature);
+		update(digest, licenseKey);
+		update(digest, merchantId);
+		return ByteBuffer.wrap(digest.digest());
+	}
+
+	private static void update(MessageDigest digest, String value)
+	{
+		// each value is prefixed with its length, so ("ab", "c") and ("a", "bc") differ
+		byte[] bytes = value != null ? value.getBytes(UTF_8) : null;
+		int length = bytes != null ? bytes.length : -1;
+		digest.update((byte) (length >>> 24));
+		digest.update((byte) (length >>> 16));
+		digest.update((byte) (length >>> 8));
+		digest.update((byte) length);
+		if (bytes != null)
+		{
+			digest.update(bytes);
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind buffer in front of another {@link BillingStorage}.
+ * <p>
+ * Values are kept in memory and written by a single background thread shortly after the
+ * first pending write, so several updates of the same key cost one disk write. Reads see
+ * pending values. Call {@link #flush()} when a value must be on disk before continuing.
+ */
+class WriteBehindStorage implements BillingStorage
+{
+	private static final long COALESCE_DELAY_MILLIS = 100;
+
+	/**
+	 * Marks a pending removal. Removals are stored as this value rather than null, so
+	 * that a pending removal can be told apart from a key with no pending write.
+	 */
+	private static final Object REMOVED = new Object();
+
+	private static final ScheduledExecutorService EXECUTOR =
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "iabv3-writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final BillingStorage storage;
+	private final long coalesceDelayMillis;
+	private final HashMap<String, Object> pending = new HashMap<>();
+	private final Object writeLock = new Object();
+	private boolean drainScheduled;
+
+	private final Runnable drain = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			flush();
+		}
+	};
+
+	WriteBehindStorage(BillingStorage storage)
+	{
+		this(storage, COALESCE_DELAY_MILLIS);
+	}
+
+	/**
+	 * @param coalesceDelayMillis how long after the first pending write the background thread
+	 *                            writes the batch
+	 */
+	WriteBehindStorage(BillingStorage storage, long coalesceDelayMillis)
+	{
+		this.storage = storage;
+		this.coalesceDelayMillis = coalesceDelayMillis;
+	}
+
+	BillingStorage getStorage()
+	{
+		return storage;
+	}
+
+	@Override
+	public void putString(String key, String value)
+	{
+		enqueue(key, value != null ? value : REMOVED);
+	}
+
+	@Override
+	public void putBoolean(String key, boolean value)
+	{
+		enqueue(key, value);
+	}
+
+	@Override
+	public void remove(String key)
+	{
+		enqueue(key, REMOVED);
+	}
+
+	@Override
+	public String getString(String key, String defValue)
+	{
+		synchronized (pending)
+		{
+			Object value = pending.get(key);
+			if (value == REMOVED)
+			{
+				return defValue;
+			}
+			if (value instanceof String)
+			{
+				return (String) value;
+			}
+		}
+		return storage.getString(key, defValue);
+	}
+
+	@Override
+	public boolean getBoolean(String key, boolean defValue)
+	{
+		synchronized (pending)
+		{
+			Object value = pending.get(key);
+			if (value == REMOVED)
+			{
+				return defValue;
+			}
+			if (value instanceof Boolean)
+			{
+				return (Boolean) value;
+			}
+		}
+		return storage.getBoolean(key, defValue);
+	}
+
+	@Override
+	public File getCacheDirectory()
+	{
+		return storage.getCacheDirectory();
+	}
+
+	/**
+	 * Writes all pending values on the calling thread and returns once they are on disk.
+	 */
+	@Override
+	public void flush()
+	{
+		// batches are written one at a time so that an older one can never land after a newer one
+		synchronized (writeLock)
+		{
+			Map<String, Object> batch;
+			synchronized (pending)
+			{
+				drainScheduled = false;
+				if (pending.isEmpty())
+				{
+					storage.flush();
+					return;
+				}
+				batch = new HashMap<>(pending);
+			}
+			HashMap<String, Object> values = new HashMap<>(batch.size() * 2);
+			for (Map.Entry<String, Object> entry : batch.entrySet())
+			{
+				values.put(entry.getKey(), entry.getValue() != REMOVED ? entry.getValue() : null);
+			}
+			storage.putAll(values);
+			storage.flush();
+			synchronized (pending)
+			{
+				// keep values that were overwritten while the batch was being written
+				for (Map.Entry<String, Object> entry : batch.entrySet())
+				{
+					if (pending.get(entry.getKey()) == entry.getValue())
+					{
+						pending.remove(entry.getKey());
+					}
+				}
+			}
+		}
+	}
+
+	private void enqueue(String key, Object value)
+	{
+		synchronized (pending)
+		{
+			pending.put(key, value);
+			if (!drainScheduled)
+			{
+				drainScheduled = true;
+				EXECUTOR.schedule(drain, coalesceDelayMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+}